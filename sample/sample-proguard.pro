@@ -1,6 +1,9 @@
 -optimizationpasses 5
 
 -keep public class * extends com.android.snap.snapservices.SnapService
+-keep public class * implements com.android.snap.snapservices.registry.SnapServiceRegistry {
+    public <init>();
+}
 
 #-dontwarn android.support.v4.**
 #-dontwarn android.support.v7.**
@@ -4,8 +4,10 @@ import android.content.Intent;
 
 import com.android.snap.snapservices.binder.ISnapBinder;
 import com.android.snap.snapservices.binder.SnapBinder;
+import com.android.snap.snapservices.registry.RegisterSnapService;
 import com.snap.android.SnapApplication;
 
+@RegisterSnapService
 public class BindedService extends BaseSnapService {
 
     public BindedService() {
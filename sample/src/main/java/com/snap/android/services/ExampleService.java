@@ -3,11 +3,13 @@ package com.snap.android.services;
 import android.content.Intent;
 
 import com.android.snap.snapservices.SnapService;
+import com.android.snap.snapservices.registry.RegisterSnapService;
 
 /**
  * Created by pedro on 23/06/2017.
  */
 
+@RegisterSnapService
 public class ExampleService extends SnapService {
 
     public ExampleService() {
@@ -1,5 +1,8 @@
 package com.snap.android.services;
 
+import com.android.snap.snapservices.registry.RegisterSnapService;
+
+@RegisterSnapService
 public class ForkService extends BaseSnapService {
     public static final String LOG_TAG = "ForkService";
 
@@ -1,7 +1,9 @@
 package com.snap.android.services.alarms;
 
+import com.android.snap.snapservices.registry.RegisterSnapService;
 import com.snap.android.services.BaseSnapService;
 
+@RegisterSnapService
 public class AlarmReceiverService extends BaseSnapService {
     public static final String LOG_TAG = "AlarmReceiverService";
 
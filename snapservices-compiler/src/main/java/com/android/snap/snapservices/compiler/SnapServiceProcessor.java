@@ -0,0 +1,235 @@
+package com.android.snap.snapservices.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that generates the Snap Service registry.
+ *
+ * <p>All the classes annotated with <em>@RegisterSnapService</em> are added to a generated
+ * <em>SnapServiceRegistry</em>, which creates them with a direct constructor call. This way, the
+ * Snap Services library doesn't need reflection to create them.</p>
+ *
+ * <p>Each module gets its own registry, named <em>GeneratedSnapServiceRegistry</em> in the package of its first
+ * Snap Service (by name), or as set by the <em>snapservices.registryClass</em> processor option. It's listed in
+ * <em>META-INF/services</em>, so the library finds the registries of every module when it starts. Modules whose
+ * registries would get the same name must set the option, which is enforced when one depends on the other.</p>
+ */
+public class SnapServiceProcessor extends AbstractProcessor {
+
+    static final String OPTION_REGISTRY_CLASS = "snapservices.registryClass";
+
+    private static final String REGISTER_ANNOTATION = "com.android.snap.snapservices.registry.RegisterSnapService";
+    private static final String REGISTRY_INTERFACE = "com.android.snap.snapservices.registry.SnapServiceRegistry";
+    private static final String SNAP_SERVICE_CLASS = "com.android.snap.snapservices.SnapService";
+    private static final String DEFAULT_REGISTRY_SIMPLE_NAME = "GeneratedSnapServiceRegistry";
+
+    private Elements mElements;
+    private Types mTypes;
+    private Filer mFiler;
+    private Messager mMessager;
+
+    /**
+     * Registered services, by binary name (the one returned by Class.getName()) to canonical name.
+     */
+    private final Map<String, String> mServices = new TreeMap<>();
+    private boolean mGenerated;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+        mFiler = processingEnv.getFiler();
+        mMessager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(REGISTER_ANNOTATION);
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(OPTION_REGISTRY_CLASS);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = mElements.getTypeElement(REGISTER_ANNOTATION);
+        if (annotation == null || roundEnv.processingOver()) {
+            return false;
+        }
+
+        boolean found = false;
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (isValidSnapService(element)) {
+                TypeElement serviceElement = (TypeElement) element;
+                mServices.put(mElements.getBinaryName(serviceElement).toString(),
+                        serviceElement.getQualifiedName().toString());
+                found = true;
+            }
+        }
+
+        if (!found) {
+            return true;
+        }
+
+        if (mGenerated) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "Snap Services registered after the registry was generated. "
+                    + "Generated Snap Services can't be annotated with @RegisterSnapService.");
+            return true;
+        }
+
+        generateRegistry();
+        mGenerated = true;
+        return true;
+    }
+
+    private boolean isValidSnapService(Element element) {
+        if (element.getKind() != ElementKind.CLASS) {
+            error(element, "Only classes can be annotated with @RegisterSnapService.");
+            return false;
+        }
+
+        TypeElement typeElement = (TypeElement) element;
+        Set<Modifier> modifiers = typeElement.getModifiers();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT)) {
+            error(element, "Snap Services annotated with @RegisterSnapService must be public and not abstract.");
+            return false;
+        }
+
+        if (typeElement.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)) {
+            error(element, "Inner Snap Services annotated with @RegisterSnapService must be static.");
+            return false;
+        }
+
+        TypeElement snapService = mElements.getTypeElement(SNAP_SERVICE_CLASS);
+        if (snapService == null || !mTypes.isSubtype(typeElement.asType(), snapService.asType())) {
+            error(element, "Classes annotated with @RegisterSnapService must extend " + SNAP_SERVICE_CLASS + ".");
+            return false;
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(typeElement.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+
+        error(element, "Snap Services annotated with @RegisterSnapService must have a public constructor without arguments.");
+        return false;
+    }
+
+    private void generateRegistry() {
+        String registryClass = processingEnv.getOptions().get(OPTION_REGISTRY_CLASS);
+        if (registryClass == null || registryClass.isEmpty()) {
+            registryClass = getDefaultRegistryClass();
+        }
+        if (mElements.getTypeElement(registryClass) != null) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "A Snap Service registry named " + registryClass
+                    + " already exists in a dependency. Set the " + OPTION_REGISTRY_CLASS
+                    + " annotation processor option of this module to another name.");
+            return;
+        }
+
+        int lastDot = registryClass.lastIndexOf('.');
+        String packageName = lastDot < 0 ? null : registryClass.substring(0, lastDot);
+        String simpleName = registryClass.substring(lastDot + 1);
+
+        StringBuilder source = new StringBuilder();
+        if (packageName != null) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+                .append(" * Snap Service registry generated by the snapservices-compiler. Do not modify.\n")
+                .append(" */\n")
+                .append("public final class ").append(simpleName).append(" implements ").append(REGISTRY_INTERFACE).append(" {\n\n")
+                .append("    @Override\n")
+                .append("    public ").append(SNAP_SERVICE_CLASS).append(" newInstance(String className) {\n")
+                .append("        switch (className) {\n");
+        for (Map.Entry<String, String> service : mServices.entrySet()) {
+            source.append("            case \"").append(service.getKey()).append("\":\n")
+                    .append("                return new ").append(service.getValue()).append("();\n");
+        }
+        source.append("            default:\n")
+                .append("                return null;\n")
+                .append("        }\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public boolean contains(String className) {\n")
+                .append("        switch (className) {\n");
+        for (String binaryName : mServices.keySet()) {
+            source.append("            case \"").append(binaryName).append("\":\n");
+        }
+        source.append("                return true;\n")
+                .append("            default:\n")
+                .append("                return false;\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+
+        try {
+            Writer writer = mFiler.createSourceFile(registryClass).openWriter();
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "Error generating the Snap Service registry: " + ex.getMessage());
+            return;
+        }
+
+        try {
+            Writer writer = mFiler.createResource(StandardLocation.CLASS_OUTPUT, "",
+                    "META-INF/services/" + REGISTRY_INTERFACE).openWriter();
+            try {
+                writer.write(registryClass + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "Error listing the Snap Service registry: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return The registry named after the package of the first registered Snap Service, so each module gets its own.
+     */
+    private String getDefaultRegistryClass() {
+        TypeElement firstService = mElements.getTypeElement(mServices.values().iterator().next());
+        String packageName = mElements.getPackageOf(firstService).getQualifiedName().toString();
+        return packageName.isEmpty() ? DEFAULT_REGISTRY_SIMPLE_NAME : packageName + "." + DEFAULT_REGISTRY_SIMPLE_NAME;
+    }
+
+    private void error(Element element, String message) {
+        mMessager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
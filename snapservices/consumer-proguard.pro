@@ -7,6 +7,9 @@
 }
 
 -keep public class * extends com.android.snap.snapservices.SnapService
+-keep public class * implements com.android.snap.snapservices.registry.SnapServiceRegistry {
+    public <init>();
+}
 
 -keep public class com.android.snap.snapservices.SnapService {
     public <methods>;
@@ -1,34 +1,56 @@
 package com.android.snap.snapservices;
 
 import android.app.ActivityManager;
-import android.app.AlarmManager;
+import android.app.Application;
 import android.app.Notification;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.android.snap.snapservices.alarms.SnapAlarmManager;
+import com.android.snap.snapservices.alarms.SnapAlarmRestoreReceiver;
+import com.android.snap.snapservices.alarms.SnapAlarmScheduler;
+import com.android.snap.snapservices.alarms.SnapProxyReceiver;
 import com.android.snap.snapservices.binder.ISnapBinder;
 import com.android.snap.snapservices.binder.SnapServiceConnection;
+import com.android.snap.snapservices.configuration.SnapBackoffPolicy;
+import com.android.snap.snapservices.configuration.SnapCoalescingPolicy;
 import com.android.snap.snapservices.configuration.SnapConfigOptions;
-import com.android.snap.snapservices.foreground.ForegroundService;
-import com.android.snap.snapservices.foreground.SnapForegroundService1;
-import com.android.snap.snapservices.foreground.SnapForegroundService2;
-import com.android.snap.snapservices.foreground.SnapForegroundService3;
-import com.android.snap.snapservices.foreground.SnapForegroundService4;
+import com.android.snap.snapservices.foreground.SnapForegroundManager;
+import com.android.snap.snapservices.ipc.SnapChannel;
+import com.android.snap.snapservices.ipc.SnapMainChannelService;
+import com.android.snap.snapservices.ipc.SnapSharedPayload;
+import com.android.snap.snapservices.journal.SnapJournal;
 import com.android.snap.snapservices.logger.SnapLogger;
-
-import java.util.HashMap;
+import com.android.snap.snapservices.metrics.SnapMetrics;
+import com.android.snap.snapservices.scheduler.SnapTimer;
+import com.android.snap.snapservices.scheduler.SnapTimerWheel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -40,7 +62,13 @@ class SnapActivityManager {
 
     private class OSnapHandler extends Handler {
         private static final int SNAP_WHAT_DELIVER_WORK = 1000;
+        private static final int SNAP_WHAT_DELIVER_WORK_BATCH = 1001;
         private static final int SNAP_WHAT_STOP_WORK = 2000;
+        private static final int SNAP_WHAT_IDLE_TIMEOUT = 3000;
+        private static final int SNAP_WHAT_TRIM_IDLE = 4000;
+        private static final int SNAP_WHAT_REPORT_LOAD = 5000;
+        private static final int SNAP_WHAT_STOP_IDLE_PROCESS = 6000;
+        private static final int SNAP_WHAT_REPORT_FORWARDS = 7000;
 
         OSnapHandler(Looper looper) {
             super(looper);
@@ -48,56 +76,149 @@ class SnapActivityManager {
 
         @Override
         public void handleMessage(Message msg) {
-            synchronized (mLock) {
-                switch (msg.what) {
-                    case SNAP_WHAT_DELIVER_WORK:
-                        if (msg.obj == null) return;
-                        Intent intent = (Intent) msg.obj;
-                        ComponentName component = intent.getComponent();
-                        SnapService serviceWorker = getServiceWorker(component);
-                        if (serviceWorker == null) return;
-                        int startId = getID();
-                        mServiceWorkersIds.put(component, startId);
-                        serviceWorker.onStartCommand((Intent) msg.obj, startId);
-                        break;
-                    case SNAP_WHAT_STOP_WORK:
-                        stopServiceWorker((ComponentName) msg.obj, msg.arg1);
-                        break;
-                }
+            switch (msg.what) {
+                case SNAP_WHAT_DELIVER_WORK:
+                    if (msg.obj == null) return;
+                    deliverWorkToService((SnapWork) msg.obj);
+                    break;
+                case SNAP_WHAT_DELIVER_WORK_BATCH:
+                    if (msg.obj == null) return;
+                    for (SnapWork work : (SnapWork[]) msg.obj) {
+                        deliverWorkToService(work);
+                    }
+                    break;
+                case SNAP_WHAT_STOP_WORK:
+                    stopServiceWorker((ComponentName) msg.obj, msg.arg1);
+                    break;
+                case SNAP_WHAT_IDLE_TIMEOUT:
+                    destroyIdleServiceWorker((ComponentName) msg.obj, false);
+                    break;
+                case SNAP_WHAT_TRIM_IDLE:
+                    for (ComponentName idleComponent : mIdleServices.keySet()) {
+                        destroyIdleServiceWorker(idleComponent, true);
+                    }
+                    break;
+                case SNAP_WHAT_REPORT_LOAD:
+                    int load = 0;
+                    for (Integer pendingStarts : mPendingStarts.values()) {
+                        load += pendingStarts;
+                    }
+                    mChannel.reportLoad(forkedProcessIndex, load);
+                    break;
+                case SNAP_WHAT_STOP_IDLE_PROCESS:
+                    stopIdleForkedProcess();
+                    break;
+                case SNAP_WHAT_REPORT_FORWARDS:
+                    reportForwards();
+                    break;
             }
         }
     }
 
     private static final int BIND_SERVICE_START_ID = -1;
 
+    /**
+     * Carries the priority of an intent forwarded to another process.
+     */
+    private static final String EXTRA_PRIORITY = "com.android.snap.extra.PRIORITY";
+    /**
+     * Carries the {@link SystemClock#elapsedRealtime()} at which an intent was forwarded to another process.
+     * That clock is the same on every process.
+     */
+    private static final String EXTRA_FORWARD_TIME = "com.android.snap.extra.FORWARD_TIME";
+    /**
+     * Marks an intent a forked process relays through the main process, as it should run on another forked process.
+     */
+    private static final String EXTRA_RELAY_TO_FORKED_PROCESS = "com.android.snap.extra.RELAY_TO_FORKED_PROCESS";
+    private static final long SHARED_WORKER_KEEP_ALIVE_SECONDS = 30;
+    /**
+     * Name suffix of the processes Snap Services are forked to, as declared in the manifest.
+     * The first one has no index, the following ones are suffixed with "_1", "_2" and so on.
+     */
+    private static final String FORKED_PROCESS_SUFFIX = ":snap_service_fork";
+    private static final String JOURNAL_FILE_NAME = "snap_journal";
+    /**
+     * How long a forked process waits to report its load, so that a burst of work results in a single report.
+     */
+    private static final long LOAD_REPORT_DELAY = 50;
+    private static final int COMPONENT_LOCK_STRIPES = 32;
+
     static SnapActivityManager sInstance;
 
     private Handler mHandler;
+    private Handler mMainHandler;
+    private HandlerThread mDispatcherThread;
+    private ThreadPoolExecutor mSharedWorkerPool;
+    private SnapServiceFactory mServiceFactory;
+    private SnapForegroundManager mForegroundManager;
+    private SnapTimerWheel mTimerWheel;
+    /**
+     * Journal of the work started on this process, or null if work isn't durable.
+     */
+    private SnapJournal mJournal;
+    /**
+     * Channel to the main process, when running on a forked process.
+     */
+    private SnapChannel mChannel;
+    /**
+     * Channels to each forked process, when running on the main process.
+     */
+    private SnapChannel[] mForkedChannels;
 
     private final SnapConfigOptions options;
     private final String packageName;
-    private Object mLock = new Object();
+    private final String processName;
+    private final int forkedProcessIndex;
+    private final boolean isForkedProcess;
+    private final long processStartTime;
     private final static AtomicInteger mStartId = new AtomicInteger(1);
     private Context context;
 
 
+    /**
+     * Locks striped by Snap Service. Everything that touches the lifecycle of a given service
+     * (create, deliver, bind, unbind and destroy) is serialized on its lock, so different services rarely contend.
+     * There's a fixed number of them, however many services the app starts.
+     */
+    private final Object[] mComponentLocks = new Object[COMPONENT_LOCK_STRIPES];
+
     private final Map<ComponentName, SnapService> mServiceWorkers = new ConcurrentHashMap<>();
-    private final Map<ComponentName, Integer> mServiceWorkersIds = new ConcurrentHashMap<>();
+    /**
+     * Number of start requests delivered to each Snap Service that didn't call stopSelf yet.
+     * A service may handle several of them in parallel, so it is only stopped once this drops to zero.
+     */
+    private final Map<ComponentName, Integer> mPendingStarts = new ConcurrentHashMap<>();
+
+    /**
+     * Snap Services kept alive with no work, and the {@link SystemClock#uptimeMillis()} they became idle at.
+     */
+    private final ConcurrentMap<ComponentName, Long> mIdleServices = new ConcurrentHashMap<>();
 
-    private final Map<ComponentName, Map<ComponentName, SnapServiceConnection>> mBoundedServices = new ConcurrentHashMap<>();
-    private final Map<ComponentName, Class> mForegroundServices = new ConcurrentHashMap<>();
+    /**
+     * Work waiting in a Snap Service queue that newer requests can still be coalesced into, by coalescing key.
+     */
+    private final ConcurrentMap<String, SnapWork> mCoalescingWork = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<ComponentName, Map<ComponentName, SnapServiceConnection>> mBoundedServices = new ConcurrentHashMap<>();
 
-    private static final Class[] AVAILABLE_FOREGROUND_SERVICES = new Class[]{
-            SnapForegroundService1.class,
-            SnapForegroundService2.class,
-            SnapForegroundService3.class,
-            SnapForegroundService4.class
-    };
+    /**
+     * On a forked process, the forwarded intents received and not reported to the main process yet: the cold
+     * forwards, their total latency, the warm forwards and their total latency.
+     */
+    private final long[] mUnreportedForwards = new long[4];
 
     private SnapActivityManager(Context context, SnapConfigOptions options) {
         this.context = context;
         this.options = options;
         this.packageName = context.getPackageName();
+        this.processStartTime = SystemClock.elapsedRealtime();
+        this.processName = resolveProcessName(context);
+        this.forkedProcessIndex = resolveForkedProcessIndex(packageName, processName);
+        this.isForkedProcess = forkedProcessIndex >= 0;
+        for (int i = 0; i < COMPONENT_LOCK_STRIPES; i++) {
+            mComponentLocks[i] = new Object();
+        }
+        SnapLogger.v("Running on process [name=" + processName + ";forkedIndex=" + forkedProcessIndex + "]");
 
         init();
     }
@@ -127,7 +248,161 @@ class SnapActivityManager {
      * Initializes all needed objects for this manager to work properly.
      */
     private synchronized void init() {
-        mHandler = new SnapActivityManager.OSnapHandler(Looper.getMainLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mServiceFactory = SnapServiceFactory.create(options);
+        mForegroundManager = new SnapForegroundManager(context, options);
+        mTimerWheel = new SnapTimerWheel(context, options.getTimerAlarmThreshold());
+        // the payloads are shared by all processes. The main one sweeps them.
+        SnapSharedPayload.init(context, !isForkedProcess);
+        SnapAlarmManager.setRestoreOnBoot(options.isRestoreAlarmsOnBoot());
+        SnapAlarmManager.preloadAlarms(context);
+        if (!isForkedProcess) {
+            updateAlarmRestoreReceiver(options.isRestoreAlarmsOnBoot());
+        }
+        if (options.isCoalesceAlarms() && !isForkedProcess) {
+            // the scheduler lives on the main process, the one its receiver runs on.
+            SnapAlarmScheduler.startup(context, options.getAlarmToleranceWindow());
+        }
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+                    trimIdleServiceWorkers();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimIdleServiceWorkers();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+
+            }
+        });
+
+        Looper dispatcherLooper;
+        if (options.getDispatcherMode() == SnapConfigOptions.DISPATCHER_BACKGROUND_THREAD) {
+            mDispatcherThread = new HandlerThread("SnapActivityManager", Process.THREAD_PRIORITY_BACKGROUND);
+            mDispatcherThread.start();
+            dispatcherLooper = mDispatcherThread.getLooper();
+        } else {
+            dispatcherLooper = Looper.getMainLooper();
+        }
+
+        mHandler = new SnapActivityManager.OSnapHandler(dispatcherLooper);
+
+        if (isForkedProcess) {
+            SnapChannel.bindOwnService(context, SnapForkedSlots.channelService(forkedProcessIndex));
+            mChannel = new SnapChannel(context, SnapMainChannelService.class, SnapProxyReceiver.class,
+                    dispatcherLooper, options.getForwardBatchWindow(), options.getForwardBatchSize());
+            mChannel.connect();
+            // it may have been started just to be warm. Don't let it linger if no work comes.
+            scheduleIdleForkedProcessStop();
+        } else {
+            SnapChannel.bindOwnService(context, SnapMainChannelService.class);
+            mForkedChannels = new SnapChannel[options.getForkedProcessCount()];
+            for (int i = 0; i < mForkedChannels.length; i++) {
+                mForkedChannels[i] = new SnapChannel(context, SnapForkedSlots.channelService(i),
+                        SnapForkedSlots.proxyReceiver(i), dispatcherLooper, options.getForwardBatchWindow(), options.getForwardBatchSize());
+                mForkedChannels[i].connect();
+            }
+        }
+
+        if (options.isSharedWorkerPoolEnabled()) {
+            int poolSize = options.getSharedWorkerPoolSize();
+            mSharedWorkerPool = new ThreadPoolExecutor(poolSize, poolSize, SHARED_WORKER_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SnapThreadFactory("SnapServicesPool"));
+            // don't keep idle threads around when there's no work to do.
+            mSharedWorkerPool.allowCoreThreadTimeOut(true);
+        }
+
+        if (options.isDurableWork()) {
+            openJournal();
+        }
+    }
+
+    /**
+     * Enables the receiver that restores the alarms on boot only when it's needed, so the app isn't started on
+     * every boot otherwise.
+     */
+    private void updateAlarmRestoreReceiver(boolean enabled) {
+        ComponentName receiver = new ComponentName(context, SnapAlarmRestoreReceiver.class);
+        // it's disabled in the manifest.
+        int state = enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+        PackageManager packageManager = context.getPackageManager();
+        if (packageManager.getComponentEnabledSetting(receiver) != state) {
+            packageManager.setComponentEnabledSetting(receiver, state, PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    /**
+     * Opens the journal of this process and starts again the work that didn't finish before it last died.
+     * The journal is opened and read in the background.
+     */
+    private void openJournal() {
+        String fileName = isForkedProcess ? JOURNAL_FILE_NAME + "_fork" + forkedProcessIndex : JOURNAL_FILE_NAME;
+        mJournal = SnapJournal.open(new File(context.getFilesDir(), fileName), options.getJournalCommitInterval(),
+                new SnapJournal.RecoveryListener() {
+                    @Override
+                    public void onRecovered(List<SnapJournal.Record> records) {
+                        long submitTime = SystemClock.uptimeMillis();
+                        for (SnapJournal.Record record : records) {
+                            SnapLogger.d("Replaying unfinished work [intent=" + record.intent + "]");
+                            SnapWork work = newWork(record.intent, record.priority, submitTime, record.id);
+                            if (work != null) {
+                                mHandler.obtainMessage(OSnapHandler.SNAP_WHAT_DELIVER_WORK, work).sendToTarget();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Provides the pool shared by all Snap Services.
+     *
+     * @return The shared pool, or null if each Snap Service should create its own worker threads.
+     */
+    Executor getSharedWorkerPool() {
+        return mSharedWorkerPool;
+    }
+
+    /**
+     * Verifies if the supplied class is a Snap Service.
+     *
+     * @param className The class name to verify.
+     * @return True if it extends from SnapService, false otherwise.
+     */
+    boolean isSnapService(String className) {
+        return mServiceFactory.isSnapService(className);
+    }
+
+    /**
+     * Runs the supplied runnable on the main thread. If we're already there, it runs right away.
+     * This is used for the {@link SnapServiceConnection} callbacks, which must always be called on the main thread.
+     *
+     * @param runnable The work to run on the main thread.
+     */
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+        } else {
+            mMainHandler.post(runnable);
+        }
+    }
+
+    /**
+     * Provides the lock that guards the lifecycle of the supplied Snap Service. It may be shared with other
+     * Snap Services, which is fine as it's reentrant: a Snap Service starting another one on the same lock
+     * doesn't block itself.
+     *
+     * @param componentName The Snap Service.
+     * @return The lock object for that Snap Service.
+     */
+    private Object getComponentLock(ComponentName componentName) {
+        return mComponentLocks[(componentName.hashCode() & Integer.MAX_VALUE) % COMPONENT_LOCK_STRIPES];
     }
 
     /**
@@ -155,46 +430,530 @@ class SnapActivityManager {
      *               name it is targeted to.  Additional values
      *               may be included in the Intent extras to supply arguments along with
      *               this specific start call.
+     * @param priority The priority of this request when compared with the other requests to the same Snap Service.
+     * @return The handle of this request, or null if the intent is null.
      */
-    synchronized void startSnapService(Intent intent) {
-        SnapLogger.v("Deliver Work on main process with intent: " + intent);
+    SnapWorkHandle startSnapService(Intent intent, int priority) {
+        SnapLogger.v("Deliver Work on main process with [intent=" + intent + ";priority=" + priority + "]");
 
         if (intent == null) {
             SnapLogger.d("Tried to start snap service with null intent. Do nothing.");
-            return;
+            return null;
         }
 
         if (verifyIfIsForkedProcess()) {
-            SnapLogger.d("We're inside another process. Forward to the main process via an alarm.");
-            SnapAlarmManager.setAlarm(context, AlarmManager.ELAPSED_REALTIME_WAKEUP, intent, 1, 1);
-            return;
+            SnapLogger.d("We're inside another process. Forward to the main process.");
+            mChannel.forward(toForwardedIntent(intent, priority));
+            return new SnapWorkHandle(null);
+        }
+
+        if (relayToForkedProcess(intent)) {
+            return new SnapWorkHandle(null);
         }
 
-        Message message = new Message();
-        message.what = OSnapHandler.SNAP_WHAT_DELIVER_WORK;
-        message.obj = intent;
-        mHandler.sendMessage(message);
+        return deliverWork(intent, priority);
     }
 
-    synchronized void startSnapServiceOnAnotherProcess(Intent intent) {
-        SnapLogger.v("Deliver Work on secondary process with intent: " + intent);
+    SnapWorkHandle startSnapServiceOnAnotherProcess(Intent intent, int priority) {
+        SnapLogger.v("Deliver Work on secondary process with [intent=" + intent + ";priority=" + priority + "]");
 
         if (intent == null) {
             SnapLogger.d("Tried to start snap service with null intent. Do nothing.");
-            return;
+            return null;
         }
 
         if (!verifyIfIsForkedProcess()) {
-            SnapLogger.d("We're not inside another process. Forward to the other process via an alarm.");
-            SnapAlarmManager.setAlarmOnSeparateProcess(context, AlarmManager.ELAPSED_REALTIME_WAKEUP, intent, 1, 1);
+            SnapLogger.d("We're not inside another process. Forward to the other process.");
+            selectForkedChannel(intent).forward(toForwardedIntent(intent, priority));
+            return new SnapWorkHandle(null);
+        }
+
+        int placedIndex = getPlacedForkedProcess(intent);
+        if (placedIndex >= 0 && placedIndex != forkedProcessIndex) {
+            // only the main process is connected to every forked process.
+            SnapLogger.d("The Snap Service runs on another forked process. Relay through the main process.");
+            Intent relayedIntent = toForwardedIntent(intent, priority);
+            relayedIntent.putExtra(EXTRA_RELAY_TO_FORKED_PROCESS, true);
+            mChannel.forward(relayedIntent);
+            return new SnapWorkHandle(null);
+        }
+
+        return deliverWork(intent, priority);
+    }
+
+    /**
+     * On the main process, forwards an intent relayed by a forked process to the forked process it should run on.
+     *
+     * @return True if it was relayed, false if it should be delivered on this process.
+     */
+    private boolean relayToForkedProcess(Intent intent) {
+        if (isForkedProcess || !intent.getBooleanExtra(EXTRA_RELAY_TO_FORKED_PROCESS, false)) return false;
+
+        intent.removeExtra(EXTRA_RELAY_TO_FORKED_PROCESS);
+        SnapLogger.v("Relaying to another forked process [intent=" + intent + "]");
+        // it still carries its priority and the time it was first forwarded at.
+        selectForkedChannel(intent).forward(intent);
+        return true;
+    }
+
+    /**
+     * Starts the Snap Service after a delay, through the timer wheel.
+     */
+    SnapTimer startSnapServiceDelayed(Intent intent, long delayMillis) {
+        SnapLogger.v("Delaying work [intent=" + intent + ";delay=" + delayMillis + "]");
+        return mTimerWheel.schedule(intent, delayMillis);
+    }
+
+    /**
+     * Runs the task after a delay, through the timer wheel. Used to retry failed work.
+     *
+     * @return The timer, to cancel the retry.
+     */
+    SnapTimer scheduleRetry(Runnable task, long delayMillis) {
+        return mTimerWheel.schedule(task, delayMillis);
+    }
+
+    /**
+     * Starts the Snap Service periodically, through the timer wheel.
+     */
+    SnapTimer startSnapServicePeriodic(Intent intent, long periodMillis, SnapBackoffPolicy backoff) {
+        SnapLogger.v("Scheduling periodic work [intent=" + intent + ";period=" + periodMillis + "]");
+        return mTimerWheel.schedulePeriodic(intent, periodMillis, backoff);
+    }
+
+    /**
+     * Picks the forked process the intent should run on, following the {@link SnapConfigOptions.PlacementPolicy}.
+     *
+     * @return The channel to that forked process.
+     */
+    private SnapChannel selectForkedChannel(Intent intent) {
+        int placedIndex = getPlacedForkedProcess(intent);
+        if (placedIndex >= 0) {
+            return mForkedChannels[placedIndex];
+        }
+
+        SnapChannel leastLoaded = mForkedChannels[0];
+        for (SnapChannel channel : mForkedChannels) {
+            if (channel.getPeerLoad() < leastLoaded.getPeerLoad()) {
+                leastLoaded = channel;
+            }
+        }
+        return leastLoaded;
+    }
+
+    /**
+     * Provides the forked process the intent is always placed on. Every process agrees on it.
+     *
+     * @return The index of that forked process, or -1 if it may run on any of them
+     * ({@link SnapConfigOptions#PLACEMENT_LEAST_LOADED}).
+     */
+    private int getPlacedForkedProcess(Intent intent) {
+        int forkedProcessCount = options.getForkedProcessCount();
+        if (forkedProcessCount == 1) {
+            return 0;
+        }
+
+        if (options.getPlacementPolicy() == SnapConfigOptions.PLACEMENT_LEAST_LOADED) {
+            return -1;
+        }
+
+        ComponentName component = intent.getComponent();
+        if (component == null) {
+            return 0;
+        }
+        return (component.getClassName().hashCode() & Integer.MAX_VALUE) % forkedProcessCount;
+    }
+
+    /**
+     * Provides the proxy receiver of the forked process the intent is placed on, so alarms reach it directly.
+     *
+     * @return The proxy receiver class. The first forked process one if the intent may run on any of them.
+     */
+    Class<?> getForkedProxyReceiver(Intent intent) {
+        return SnapForkedSlots.proxyReceiver(Math.max(getPlacedForkedProcess(intent), 0));
+    }
+
+    /**
+     * Starts the forked processes that aren't running yet, so the next work started on them doesn't pay
+     * for the process start.
+     */
+    void prewarmForkedProcesses() {
+        if (isForkedProcess) return;
+
+        for (SnapChannel channel : mForkedChannels) {
+            channel.prewarm();
+        }
+    }
+
+    /**
+     * Called on the main process when a forked process reports how much work it has pending.
+     */
+    void onForkedProcessLoadReported(int processIndex, int load) {
+        if (mForkedChannels == null || processIndex < 0 || processIndex >= mForkedChannels.length) return;
+
+        mForkedChannels[processIndex].onPeerLoadReported(load);
+    }
+
+    /**
+     * On a forked process, reports to the main process how much work is pending, when that's needed to
+     * place new work on the least loaded process. Changes close in time are reported together.
+     */
+    private void scheduleLoadReport() {
+        if (!isForkedProcess || options.getForkedProcessCount() == 1
+                || options.getPlacementPolicy() != SnapConfigOptions.PLACEMENT_LEAST_LOADED) {
             return;
         }
 
-        Message message = new Message();
-        message.what = OSnapHandler.SNAP_WHAT_DELIVER_WORK;
-        message.obj = intent;
-        mHandler.sendMessage(message);
+        if (!mHandler.hasMessages(OSnapHandler.SNAP_WHAT_REPORT_LOAD)) {
+            mHandler.sendEmptyMessageDelayed(OSnapHandler.SNAP_WHAT_REPORT_LOAD, LOAD_REPORT_DELAY);
+        }
+    }
+
+    /**
+     * On a forked process, counts a forwarded intent to be reported to the main process, where the metrics are read.
+     * Forwards close in time are reported together.
+     */
+    private void scheduleForwardsReport(long latency, boolean cold) {
+        if (!isForkedProcess) return;
+
+        synchronized (mUnreportedForwards) {
+            int offset = cold ? 0 : 2;
+            mUnreportedForwards[offset]++;
+            mUnreportedForwards[offset + 1] += latency;
+        }
+        if (!mHandler.hasMessages(OSnapHandler.SNAP_WHAT_REPORT_FORWARDS)) {
+            mHandler.sendEmptyMessageDelayed(OSnapHandler.SNAP_WHAT_REPORT_FORWARDS, LOAD_REPORT_DELAY);
+        }
+    }
+
+    private void reportForwards() {
+        long[] forwards;
+        synchronized (mUnreportedForwards) {
+            forwards = mUnreportedForwards.clone();
+            Arrays.fill(mUnreportedForwards, 0);
+        }
+        if (!mChannel.reportForwards(forwards)) {
+            // the main process isn't connected yet. They go with the next report.
+            synchronized (mUnreportedForwards) {
+                for (int i = 0; i < forwards.length; i++) {
+                    mUnreportedForwards[i] += forwards[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps the intent into a {@link SnapWork} and hands it to the dispatcher, to be delivered to the Snap Service.
+     *
+     * @return The handle of the new work or, if the intent was coalesced, of the queued work it was coalesced into.
+     */
+    private SnapWorkHandle deliverWork(Intent intent, int priority) {
+        SnapWork[] coalescedInto = new SnapWork[1];
+        SnapWork work = newWork(intent, priority, SystemClock.uptimeMillis(), SnapJournal.NO_RECORD, coalescedInto);
+        if (work == null) {
+            // the exact work it was coalesced into, even if it already finished or was replaced meanwhile.
+            return new SnapWorkHandle(coalescedInto[0]);
+        }
+
+        mHandler.obtainMessage(OSnapHandler.SNAP_WHAT_DELIVER_WORK, work).sendToTarget();
+        return new SnapWorkHandle(work);
+    }
+
+    /**
+     * Delivers the intent on this process, with a future completed with the result of the Snap Service.
+     * It's never coalesced, as each request expects its own result, nor journaled, as a replayed request would
+     * have no future to complete. On a forked process, the future fails with an {@link IllegalStateException}
+     * if the Snap Service is placed on another forked process.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param priority The priority of this request.
+     * @param resultType The type of the result.
+     * @return The future, or null if the intent is null.
+     */
+    <R> SnapFuture<R> submitSnapService(Intent intent, int priority, Class<R> resultType) {
+        SnapLogger.v("Submit Work with [intent=" + intent + ";priority=" + priority + "]");
+
+        if (intent == null) {
+            SnapLogger.d("Tried to submit snap service with null intent. Do nothing.");
+            return null;
+        }
+
+        SnapWork work = new SnapWork(intent, priority, SystemClock.uptimeMillis(), options.getPriorityAgingInterval());
+        SnapFuture<R> future = new SnapFuture<>(work, resultType);
+        work.setFuture(future);
+
+        int placedIndex = isForkedProcess ? getPlacedForkedProcess(intent) : forkedProcessIndex;
+        if (placedIndex >= 0 && placedIndex != forkedProcessIndex) {
+            // the result can't travel back from another process.
+            SnapLogger.w("The Snap Service runs on another forked process. Rejecting the submit [intent="
+                    + intent + "]");
+            work.markFinished();
+            future.setException(new IllegalStateException("The Snap Service is placed on another forked process"));
+            return future;
+        }
+
+        mHandler.obtainMessage(OSnapHandler.SNAP_WHAT_DELIVER_WORK, work).sendToTarget();
+        return future;
     }
+
+    /**
+     * Cancels the work. If it's still waiting on the Snap Service queue, it's removed and never handled.
+     * If it's waiting to be retried, the retry is cancelled. If it's already running, {@link SnapService#isCancelled()}
+     * tells it so. Otherwise, it's still on its way to the Snap Service, which drops it once it's taken out of the queue.
+     *
+     * @param work The work to be cancelled.
+     * @return True if it was cancelled, false if it had already finished or was already cancelled.
+     */
+    boolean cancelWork(SnapWork work) {
+        if (!work.cancel()) return false;
+
+        SnapLogger.v("Work cancelled [work=" + work + "]");
+        SnapMetrics.onWorkCancelled();
+        if (work.getCoalescingKey() != null) {
+            mCoalescingWork.remove(work.getCoalescingKey(), work);
+        }
+
+        ComponentName component = work.getIntent().getComponent();
+        SnapService serviceWorker = component == null ? null : mServiceWorkers.get(component);
+        if (serviceWorker != null && (serviceWorker.removeWork(work) || cancelRetry(work))) {
+            serviceWorker.finishWork(work);
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the work was waiting to be retried, and now it won't be.
+     */
+    private static boolean cancelRetry(SnapWork work) {
+        SnapTimer retryTimer = work.getRetryTimer();
+        return retryTimer != null && retryTimer.cancel();
+    }
+
+    /**
+     * Delivers, in this process, a batch of Snap Intents forwarded by the other process.
+     * The whole batch is handed to the dispatcher at once.
+     *
+     * @param intents The forwarded Snap Intents, carrying their priority.
+     */
+    void deliverForwardedWork(List<Intent> intents) {
+        long submitTime = SystemClock.uptimeMillis();
+        List<SnapWork> batch = new ArrayList<>(intents.size());
+        for (Intent intent : intents) {
+            if (relayToForkedProcess(intent)) continue;
+
+            SnapWork work = newWork(intent, getForwardedPriority(intent), submitTime, SnapJournal.NO_RECORD);
+            if (work != null) {
+                batch.add(work);
+            }
+        }
+
+        if (batch.isEmpty()) return;
+        mHandler.obtainMessage(OSnapHandler.SNAP_WHAT_DELIVER_WORK_BATCH, batch.toArray(new SnapWork[batch.size()]))
+                .sendToTarget();
+    }
+
+    /**
+     * Wraps the intent into a {@link SnapWork}, unless it can be coalesced into work already queued.
+     * With durable work, the intent is journaled.
+     *
+     * @param journalId The journal record of this intent, if it's being replayed. {@link SnapJournal#NO_RECORD}
+     *                  to journal it.
+     * @return The new work, or null if the intent was coalesced.
+     */
+    private SnapWork newWork(Intent intent, int priority, long submitTime, long journalId) {
+        return newWork(intent, priority, submitTime, journalId, null);
+    }
+
+    /**
+     * The same as {@link #newWork(Intent, int, long, long)}, but also tells which work the intent was coalesced into.
+     *
+     * @param coalescedInto Set, at index 0, to the queued work the intent was coalesced into. May be null.
+     */
+    private SnapWork newWork(Intent intent, int priority, long submitTime, long journalId, SnapWork[] coalescedInto) {
+        long forwardTime = intent.getLongExtra(EXTRA_FORWARD_TIME, 0);
+        if (forwardTime > 0) {
+            // it was started before this process, so it had to wait for it.
+            boolean cold = forwardTime < processStartTime;
+            long latency = SystemClock.elapsedRealtime() - forwardTime;
+            SnapMetrics.onForwardReceived(latency, cold);
+            scheduleForwardsReport(latency, cold);
+            intent.removeExtra(EXTRA_FORWARD_TIME);
+        }
+        // the priority was already read. Don't let it reach onHandleIntent, or stick if the intent is started again.
+        intent.removeExtra(EXTRA_PRIORITY);
+
+        String coalescingKey = getCoalescingKey(intent);
+        if (coalescingKey == null) {
+            SnapWork work = new SnapWork(intent, priority, submitTime, options.getPriorityAgingInterval());
+            journal(work, journalId);
+            return work;
+        }
+
+        SnapWork queuedWork = mCoalescingWork.get(coalescingKey);
+        int mode = options.getCoalescingPolicy(intent.getComponent().getClassName()).getMode();
+        if (queuedWork != null && queuedWork.coalesce(intent, mode)) {
+            SnapLogger.v("Intent coalesced into queued work [intent=" + intent + ";work=" + queuedWork + "]");
+            if (priority > queuedWork.getPriority()) {
+                raisePriority(queuedWork, priority, submitTime);
+            }
+            if (mJournal != null) {
+                journalCoalesced(queuedWork);
+                mJournal.markDone(journalId);
+            }
+            if (coalescedInto != null) {
+                coalescedInto[0] = queuedWork;
+            }
+            return null;
+        }
+
+        SnapWork work = new SnapWork(intent, priority, submitTime, options.getPriorityAgingInterval(), coalescingKey);
+        journal(work, journalId);
+        mCoalescingWork.put(coalescingKey, work);
+        return work;
+    }
+
+    /**
+     * Raises the priority of queued work to the one of a request coalesced into it.
+     */
+    private void raisePriority(SnapWork work, int priority, long submitTime) {
+        long orderingTime = submitTime - priority * options.getPriorityAgingInterval();
+        ComponentName component = work.getIntent().getComponent();
+        // the work is only added to the queue of its Snap Service under this lock, so it can't get there meanwhile.
+        synchronized (getComponentLock(component)) {
+            SnapService serviceWorker = mServiceWorkers.get(component);
+            if (serviceWorker != null) {
+                serviceWorker.raiseWorkPriority(work, priority, orderingTime);
+            } else {
+                work.raisePriority(priority, orderingTime);
+            }
+        }
+    }
+
+    /**
+     * Journals the intent of new work, unless it was already journaled.
+     */
+    private void journal(SnapWork work, long journalId) {
+        if (mJournal == null) return;
+
+        if (journalId == SnapJournal.NO_RECORD) {
+            journalId = mJournal.append(work.getIntent(), work.getPriority());
+        }
+        work.setJournalId(journalId);
+    }
+
+    /**
+     * Journals the intent a queued work was updated with, replacing the record of its previous intent.
+     */
+    private void journalCoalesced(SnapWork work) {
+        synchronized (work) {
+            // it may have been handled right after it was updated.
+            if (work.isFinished()) return;
+
+            long previousJournalId = work.getJournalId();
+            work.setJournalId(mJournal.append(work.getIntent(), work.getPriority()));
+            mJournal.markDone(previousJournalId);
+        }
+    }
+
+    /**
+     * Called once the work was handled, or if it will never be. With durable work, it's no longer replayed
+     * if the process dies.
+     *
+     * @param work The finished work.
+     */
+    void onWorkFinished(SnapWork work) {
+        if (work.getCoalescingKey() != null) {
+            mCoalescingWork.remove(work.getCoalescingKey(), work);
+        }
+        long journalId = work.markFinished();
+        if (mJournal != null) {
+            mJournal.markDone(journalId);
+        }
+        SnapFuture<?> future = work.getFuture();
+        if (future != null) {
+            future.onWorkFinished();
+        }
+    }
+
+    /**
+     * Delivers the work to its Snap Service, creating it if needed. Runs on the dispatcher.
+     */
+    private void deliverWorkToService(SnapWork work) {
+        ComponentName component = work.getIntent().getComponent();
+        if (component == null) return;
+        synchronized (getComponentLock(component)) {
+            SnapService serviceWorker = getServiceWorker(component);
+            if (serviceWorker == null) {
+                // this work will never run. Don't let newer requests be coalesced into it.
+                onWorkStarted(work);
+                SnapSharedPayload.release(work.getIntent());
+                onWorkFinished(work);
+                return;
+            }
+            work.setStartId(getID());
+            Integer pendingStarts = mPendingStarts.get(component);
+            mPendingStarts.put(component, pendingStarts == null ? 1 : pendingStarts + 1);
+            scheduleLoadReport();
+            serviceWorker.deliverWork(work);
+        }
+    }
+
+    /**
+     * Provides the key used to coalesce this intent with the requests still waiting on the Snap Service queue.
+     *
+     * @param intent The intent being started.
+     * @return The coalescing key, unique across all Snap Services, or null if this intent should not be coalesced.
+     */
+    private String getCoalescingKey(Intent intent) {
+        ComponentName component = intent.getComponent();
+        if (component == null) return null;
+
+        SnapCoalescingPolicy policy = options.getCoalescingPolicy(component.getClassName());
+        if (policy == null) return null;
+
+        String key = policy.getCoalescingKey(intent);
+        return key == null ? null : component.getClassName() + "#" + key;
+    }
+
+    /**
+     * Called on the worker thread right before the work is handled. From here on, no newer
+     * request is coalesced into it.
+     *
+     * @param work The work about to be handled.
+     */
+    void onWorkStarted(SnapWork work) {
+        work.markStarted();
+        if (work.getCoalescingKey() != null) {
+            mCoalescingWork.remove(work.getCoalescingKey(), work);
+        }
+    }
+
+    /**
+     * Provides the priority an intent was started with on another process.
+     *
+     * @param intent The intent received from another process.
+     * @return The priority it was started with, or {@link SnapServicesContext#PRIORITY_DEFAULT} if none was set.
+     */
+    static int getForwardedPriority(Intent intent) {
+        if (intent == null) return SnapServicesContext.PRIORITY_DEFAULT;
+        return intent.getIntExtra(EXTRA_PRIORITY, SnapServicesContext.PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Copies the intent to be forwarded to another process, along with its priority and the time it was
+     * forwarded at, so they're not lost on the way.
+     */
+    private static Intent toForwardedIntent(Intent intent, int priority) {
+        Intent forwardedIntent = new Intent(intent);
+        if (priority != SnapServicesContext.PRIORITY_DEFAULT) {
+            forwardedIntent.putExtra(EXTRA_PRIORITY, priority);
+        } else {
+            forwardedIntent.removeExtra(EXTRA_PRIORITY);
+        }
+        forwardedIntent.putExtra(EXTRA_FORWARD_TIME, SystemClock.elapsedRealtime());
+        return forwardedIntent;
+    }
+
     /**
      * Connect to a Snap Service, creating it if needed.  This defines
      * a dependency between your application and the Snap Service.  The given
@@ -223,17 +982,23 @@ class SnapActivityManager {
      *             receive the service object.
      * @see #unbindService
      */
-    synchronized boolean bindService(Intent service, SnapServiceConnection conn) {
+    boolean bindService(Intent service, final SnapServiceConnection conn) {
         if (service == null) return false;
 
-        synchronized (mBoundedServices) {
-            SnapLogger.v("Request binding for [intent=" + service + "]");
-            ComponentName component = service.getComponent();
+        SnapLogger.v("Request binding for [intent=" + service + "]");
+        final ComponentName component = service.getComponent();
+        if (component == null) return false;
+        synchronized (getComponentLock(component)) {
             try {
                 SnapService serviceWorker = getServiceWorker(component);
                 if (serviceWorker == null) return false;
-                ISnapBinder iSnapBinder = serviceWorker.onBind(service);
-                conn.onServiceConnected(component, iSnapBinder);
+                final ISnapBinder iSnapBinder = serviceWorker.onBind(service);
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.onServiceConnected(component, iSnapBinder);
+                    }
+                });
                 addBoundedServiceConnection(component, conn);
                 return true;
             } catch (Exception ex) {
@@ -253,18 +1018,25 @@ class SnapActivityManager {
      *
      * @see #bindService
      */
-    synchronized boolean unbindService(SnapServiceConnection conn) {
+    boolean unbindService(SnapServiceConnection conn) {
         if (conn == null) return false;
 
-        synchronized (mBoundedServices) {
-            for (ComponentName componentName : mBoundedServices.keySet()) {
+        ComponentName connectionComponent = new ComponentName(packageName, conn.getClass().getName());
+        for (final ComponentName componentName : mBoundedServices.keySet()) {
+            synchronized (getComponentLock(componentName)) {
                 Map<ComponentName, SnapServiceConnection> stringSnapServiceConnectionMap
                         = mBoundedServices.get(componentName);
-                SnapServiceConnection remove = stringSnapServiceConnectionMap.remove(
-                        new ComponentName(packageName, conn.getClass().getName()));
+                if (stringSnapServiceConnectionMap == null) continue;
+
+                final SnapServiceConnection remove = stringSnapServiceConnectionMap.remove(connectionComponent);
                 if (remove != null) {
                     SnapLogger.v("Unbinding service [componentName=" + componentName + "]");
-                    remove.onServiceDisconnected(componentName);
+                    runOnMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            remove.onServiceDisconnected(componentName);
+                        }
+                    });
 
                     if (stringSnapServiceConnectionMap.isEmpty()) {
                         mBoundedServices.remove(componentName);
@@ -284,15 +1056,16 @@ class SnapActivityManager {
      * @param connectionComponent Indicates the Snap Service to retrieve its connection list.
      * @return A map of its connections.
      */
-    private synchronized Map<ComponentName, SnapServiceConnection> getSnapServiceConnections(ComponentName connectionComponent) {
-        synchronized (mBoundedServices) {
-            Map<ComponentName, SnapServiceConnection> snapServiceConnections = mBoundedServices.get(connectionComponent);
+    private Map<ComponentName, SnapServiceConnection> getSnapServiceConnections(ComponentName connectionComponent) {
+        Map<ComponentName, SnapServiceConnection> snapServiceConnections = mBoundedServices.get(connectionComponent);
+        if (snapServiceConnections == null) {
+            Map<ComponentName, SnapServiceConnection> newConnections = new ConcurrentHashMap<>();
+            snapServiceConnections = mBoundedServices.putIfAbsent(connectionComponent, newConnections);
             if (snapServiceConnections == null) {
-                snapServiceConnections = new HashMap<>();
-                mBoundedServices.put(connectionComponent, snapServiceConnections);
+                snapServiceConnections = newConnections;
             }
-            return snapServiceConnections;
         }
+        return snapServiceConnections;
     }
 
     /**
@@ -301,16 +1074,14 @@ class SnapActivityManager {
      * @param serviceComponent Indicates the Snap Service to bound.
      * @param snapServiceConnection The connection the service is bounded with.
      */
-    private synchronized void addBoundedServiceConnection(ComponentName serviceComponent, SnapServiceConnection snapServiceConnection) {
-        synchronized (mBoundedServices) {
-            Map<ComponentName, SnapServiceConnection> snapServiceConnections = getSnapServiceConnections(serviceComponent);
+    private void addBoundedServiceConnection(ComponentName serviceComponent, SnapServiceConnection snapServiceConnection) {
+        Map<ComponentName, SnapServiceConnection> snapServiceConnections = getSnapServiceConnections(serviceComponent);
 
-            ComponentName serviceConnectionComponent = new ComponentName(packageName,
-                    snapServiceConnection.getClass().getName());
+        ComponentName serviceConnectionComponent = new ComponentName(packageName,
+                snapServiceConnection.getClass().getName());
 
-            if (snapServiceConnections.isEmpty() || !snapServiceConnections.containsKey(serviceConnectionComponent)) {
-                snapServiceConnections.put(serviceConnectionComponent, snapServiceConnection);
-            }
+        if (!snapServiceConnections.containsKey(serviceConnectionComponent)) {
+            snapServiceConnections.put(serviceConnectionComponent, snapServiceConnection);
         }
     }
 
@@ -319,10 +1090,8 @@ class SnapActivityManager {
      * @param serviceComponent Indicates the Snap Service to validate.
      * @return True if is bounded, false otherwise.
      */
-    private synchronized boolean isServiceBounded(ComponentName serviceComponent) {
-        synchronized (mBoundedServices) {
-            return mBoundedServices.containsKey(serviceComponent);
-        }
+    private boolean isServiceBounded(ComponentName serviceComponent) {
+        return mBoundedServices.containsKey(serviceComponent);
     }
 
     /**
@@ -331,54 +1100,38 @@ class SnapActivityManager {
      * @param className The class name of the Snap Service.
      * @param startId The ID in which the Snap Service was started with.
      */
-    synchronized void stopSelfWorker(String className, int startId) {
+    void stopSelfWorker(String className, int startId) {
         SnapLogger.v("Requesting to stopSelfWorker [className=" + className + ";startId=" + startId + "]");
-        Message message = new Message();
-        message.what = OSnapHandler.SNAP_WHAT_STOP_WORK;
-        message.obj = new ComponentName(packageName, className);
-        message.arg1 = startId;
-        mHandler.sendMessage(message);
+        mHandler.obtainMessage(OSnapHandler.SNAP_WHAT_STOP_WORK, startId, 0,
+                new ComponentName(packageName, className)).sendToTarget();
     }
 
     /**
      * Manages the running services by providing an existing one or creating one if needed.
      * The Snap Service is then added into a pool of running Snap Services.
+     * The caller must hold the {@link #getComponentLock(ComponentName)} of the supplied component.
      * @param componentName Component Name indicating the Snap Service to get.
      * @return An instance of the expected Snap Service, or null if it couldn't be created.
      */
-    private synchronized SnapService getServiceWorker(ComponentName componentName) {
-        synchronized (mServiceWorkers) {
-            SnapService snapService = mServiceWorkers.get(componentName);
+    private SnapService getServiceWorker(ComponentName componentName) {
+        SnapService snapService = mServiceWorkers.get(componentName);
 
-            if (snapService != null) {
-                return snapService;
-            }
-
-            Class<?> workServiceClass = null;
-            try {
-                workServiceClass = Class.forName(componentName.getClassName());
-            } catch (ClassNotFoundException e) {
-                SnapLogger.e("Error getting class for name", e);
-            }
-
-            if (workServiceClass == null) return null;
-
-            Object workerServiceObject = null;
-            try {
-                workerServiceObject = workServiceClass.newInstance();
-            } catch (Exception e) {
-                SnapLogger.e("Error instantiating class", e);
+        if (snapService != null) {
+            if (mIdleServices.remove(componentName) != null) {
+                SnapLogger.v("Reusing idle service [component=" + componentName + "]");
+                SnapMetrics.onIdleServiceReused();
             }
+            return snapService;
+        }
 
-            if (workerServiceObject == null || !(workerServiceObject instanceof SnapService))
-                return null;
+        SnapService worker = mServiceFactory.newInstance(componentName.getClassName());
+        if (worker == null) return null;
 
-            SnapService worker = (SnapService) workerServiceObject;
-            worker.attach(context);
-            worker.onCreate();
-            mServiceWorkers.put(componentName, worker);
-            return worker;
-        }
+        worker.attach(context);
+        worker.onCreate();
+        mServiceWorkers.put(componentName, worker);
+        SnapMetrics.onServiceCreated();
+        return worker;
     }
 
     /**
@@ -387,134 +1140,271 @@ class SnapActivityManager {
      * @param serviceComponent The Snap Service to be stopped.
      * @param startId The ID in which the Snap Service was started with.
      */
-    private synchronized void stopServiceWorker(ComponentName serviceComponent, int startId) {
-        synchronized (mLock) {
+    private void stopServiceWorker(ComponentName serviceComponent, int startId) {
+        synchronized (getComponentLock(serviceComponent)) {
             SnapLogger.v("Stopping service [component=" + serviceComponent + ";startId=" + startId + "]");
-            Integer currentStartId = mServiceWorkersIds.get(serviceComponent);
-
-            if (currentStartId == null && startId == BIND_SERVICE_START_ID || currentStartId != null && currentStartId == startId) {
-                mServiceWorkersIds.remove(serviceComponent);
-
-                if (isServiceBounded(serviceComponent)) {
-                    SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] is still bounded. Don't stop.");
-                    return;
-                }
-
-                SnapService remove = mServiceWorkers.remove(serviceComponent);
+            Integer pendingStarts = mPendingStarts.get(serviceComponent);
 
-                if (remove == null) {
-                    SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] killed in the meantime.");
+            if (startId != BIND_SERVICE_START_ID) {
+                if (pendingStarts == null) {
+                    SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] has no pending work. Ignore.");
                     return;
                 }
 
-                try {
-                    remove.onDestroy();
-                } catch (Exception ex) {
-                    SnapLogger.v("Error destroying service [component=" + serviceComponent + ";startId=" + startId + "]", ex);
-                }
-
-                SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] stopped!");
-
-                if (options.isKillSeparateProcessOnFinish() && verifyIfIsForkedProcess()) {
-                    SnapLogger.v("This is the other process. Stop it!");
-                    Process.killProcess(Process.myPid());
+                pendingStarts--;
+                if (pendingStarts > 0) {
+                    mPendingStarts.put(serviceComponent, pendingStarts);
+                } else {
+                    mPendingStarts.remove(serviceComponent);
                 }
+                scheduleLoadReport();
+            }
 
-            } else {
+            if (pendingStarts != null && pendingStarts > 0) {
                 SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] still running. Don't stop me now!");
+                return;
             }
-        }
-    }
-
-    synchronized void startForegroundService(ComponentName service, int notificationId,
-                                                    Notification notification) {
-        synchronized (mForegroundServices) {
-            Class foregroundServiceClass = mForegroundServices.get(service);
 
-            if (foregroundServiceClass == null) {
-                // that notification ID is still not in use. Find a foreground service to use.
-                for (Class availableForegroundService : AVAILABLE_FOREGROUND_SERVICES) {
-                    if (!mForegroundServices.containsValue(availableForegroundService)) {
-                        foregroundServiceClass = availableForegroundService;
-                        break;
-                    }
-                }
+            if (isServiceBounded(serviceComponent)) {
+                SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] is still bounded. Don't stop.");
+                return;
             }
 
-            if (foregroundServiceClass == null) {
-                //there's no foreground service available. try next time.
+            SnapService serviceWorker = mServiceWorkers.get(serviceComponent);
+
+            if (serviceWorker == null) {
+                SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] killed in the meantime.");
                 return;
             }
 
-            //use the service available
-            Intent foregroundService = new Intent(context, foregroundServiceClass);
-            foregroundService.setAction(ForegroundService.ACTION_START_FOREGROUND);
-            foregroundService.putExtra(ForegroundService.NOTIFICATION_EXTRA, notification);
-            foregroundService.putExtra(ForegroundService.NOTIFICATION_ID_EXTRA, notificationId);
-            startService(foregroundService);
+            long idleTimeout = getIdleTimeout(serviceWorker);
+            if (idleTimeout > 0) {
+                SnapLogger.v("Service [component=" + serviceComponent + ";startId=" + startId + "] is idle. Keep it alive for "
+                        + idleTimeout + "ms.");
+                mIdleServices.put(serviceComponent, SystemClock.uptimeMillis());
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(OSnapHandler.SNAP_WHAT_IDLE_TIMEOUT, serviceComponent),
+                        idleTimeout);
+                scheduleIdleForkedProcessStop();
+                return;
+            }
 
-            mForegroundServices.put(service, foregroundServiceClass);
+            destroyServiceWorker(serviceComponent);
         }
     }
 
     /**
-     * Requests the provided service to be removed from background.
+     * Destroys the supplied Snap Service if it's still idle and, unless <var>trim</var> is set, if it has been
+     * idle for at least its idle timeout.
      *
-     * @param service The service to be stopped form background.
+     * @param serviceComponent The idle Snap Service.
+     * @param trim True to destroy it right away, due to memory pressure.
      */
-    synchronized void stopForegroundService(ComponentName service) {
-        synchronized (mForegroundServices) {
-            Class foregroundServiceClass = mForegroundServices.remove(service);
-            if (foregroundServiceClass == null) {
+    private void destroyIdleServiceWorker(ComponentName serviceComponent, boolean trim) {
+        synchronized (getComponentLock(serviceComponent)) {
+            Long idleSince = mIdleServices.get(serviceComponent);
+            SnapService serviceWorker = mServiceWorkers.get(serviceComponent);
+            if (idleSince == null || serviceWorker == null) {
+                // got work in the meantime.
                 return;
             }
 
-            Intent foregroundService = new Intent(context, foregroundServiceClass);
-            foregroundService.setAction(ForegroundService.ACTION_STOP_FOREGROUND);
-            startService(foregroundService);
+            if (!trim && SystemClock.uptimeMillis() - idleSince < getIdleTimeout(serviceWorker)) {
+                // it was reused and became idle again. The newer idle timeout will take care of it.
+                return;
+            }
+
+            SnapLogger.v("Idle service [component=" + serviceComponent + ";trim=" + trim + "] timed out.");
+            mIdleServices.remove(serviceComponent);
+            if (trim) {
+                SnapMetrics.onIdleServiceTrimmed();
+            }
+            destroyServiceWorker(serviceComponent);
         }
     }
 
     /**
-     * Wrapper to start a foreground service.
+     * Destroys all the idle Snap Services, without waiting for their idle timeout.
+     */
+    private void trimIdleServiceWorkers() {
+        if (mIdleServices.isEmpty()) return;
+
+        SnapLogger.d("Memory pressure. Destroying all idle services.");
+        mHandler.sendEmptyMessage(OSnapHandler.SNAP_WHAT_TRIM_IDLE);
+    }
+
+    /**
+     * Provides how long the supplied Snap Service stays alive once it has no more work.
+     */
+    private long getIdleTimeout(SnapService serviceWorker) {
+        long idleTimeout = serviceWorker.getIdleTimeout();
+        return idleTimeout < 0 ? options.getServiceIdleTimeout() : idleTimeout;
+    }
+
+    /**
+     * Destroys the supplied Snap Service. The caller must hold its {@link #getComponentLock(ComponentName)}.
      *
-     * @param foregroundService The service to be started.
+     * @param serviceComponent The Snap Service to destroy.
      */
-    private void startService(Intent foregroundService) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-            context.startService(foregroundService);
-        } else {
-            //Android O
-            context.startForegroundService(foregroundService);
+    private void destroyServiceWorker(ComponentName serviceComponent) {
+        SnapService remove = mServiceWorkers.remove(serviceComponent);
+        if (remove == null) return;
+
+        try {
+            remove.onDestroy();
+        } catch (Exception ex) {
+            SnapLogger.v("Error destroying service [component=" + serviceComponent + "]", ex);
         }
+
+        SnapMetrics.onServiceDestroyed();
+        SnapLogger.v("Service [component=" + serviceComponent + "] stopped!");
+
+        scheduleIdleForkedProcessStop();
     }
 
     /**
-     * Verifies current process name corresponds to ":snap-service-fork".
+     * On a forked process that should be killed once it has nothing to do, stops it after its idle timeout.
+     * Any Snap Service becoming idle restarts the timeout.
+     */
+    private void scheduleIdleForkedProcessStop() {
+        if (!options.isKillSeparateProcessOnFinish() || !isForkedProcess) return;
+
+        mHandler.removeMessages(OSnapHandler.SNAP_WHAT_STOP_IDLE_PROCESS);
+        mHandler.sendEmptyMessageDelayed(OSnapHandler.SNAP_WHAT_STOP_IDLE_PROCESS,
+                options.getForkedProcessIdleTimeout());
+    }
+
+    /**
+     * Kills this forked process, if all its Snap Services are idle: no pending work and nobody bound to them.
+     * Timers waiting in the wheel and intents not sent to the main process yet count as pending work.
+     */
+    private void stopIdleForkedProcess() {
+        if (!mPendingStarts.isEmpty() || !mBoundedServices.isEmpty()
+                || mHandler.hasMessages(OSnapHandler.SNAP_WHAT_DELIVER_WORK)
+                || mHandler.hasMessages(OSnapHandler.SNAP_WHAT_DELIVER_WORK_BATCH)
+                || mTimerWheel.hasPendingTimers() || mChannel.hasPendingIntents()) {
+            SnapLogger.v("This is the other process, but it's not idle. Keep it.");
+            scheduleIdleForkedProcessStop();
+            return;
+        }
+
+        if (mHandler.hasMessages(OSnapHandler.SNAP_WHAT_REPORT_FORWARDS)) {
+            mHandler.removeMessages(OSnapHandler.SNAP_WHAT_REPORT_FORWARDS);
+            reportForwards();
+        }
+
+        SnapLogger.v("This is the other process and it's idle. Stop it!");
+        Process.killProcess(Process.myPid());
+    }
+
+    void startForegroundService(ComponentName service, int notificationId, Notification notification) {
+        mForegroundManager.startForeground(service, notificationId, notification);
+    }
+
+    void stopForegroundService(ComponentName service) {
+        mForegroundManager.stopForeground(service);
+    }
+
+    /**
+     * Verifies current process is one of the ":snap_service_fork" processes.
+     * The process name is resolved once, at startup, so this doesn't do any IPC.
      *
-     * @return True if this is the forked process.
+     * @return True if this is a forked process.
      */
     boolean verifyIfIsForkedProcess() {
-        int myPid = android.os.Process.myPid();
+        return isForkedProcess;
+    }
+
+    /**
+     * Resolves which forked process this is, from its name.
+     *
+     * @return The index of this forked process, or -1 if this is the main process.
+     */
+    private static int resolveForkedProcessIndex(String packageName, String processName) {
+        if (processName == null) return -1;
+
+        String forkedProcessName = packageName + FORKED_PROCESS_SUFFIX;
+        if (processName.equals(forkedProcessName)) return 0;
+        if (!processName.startsWith(forkedProcessName + "_")) return -1;
+
+        try {
+            int index = Integer.parseInt(processName.substring(forkedProcessName.length() + 1));
+            return index > 0 && index < SnapForkedSlots.COUNT ? index : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Resolves the name of the current process. It can't change while the process is alive, so this is only
+     * needed once.
+     *
+     * @param context The application context.
+     * @return The current process name, or null if it couldn't be resolved.
+     */
+    private static String resolveProcessName(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            String processName = Application.getProcessName();
+            if (!TextUtils.isEmpty(processName)) {
+                return processName;
+            }
+        }
+
+        String processName = readProcessNameFromCmdline();
+        if (!TextUtils.isEmpty(processName)) {
+            return processName;
+        }
+
+        SnapLogger.v("Couldn't read the process name from /proc. Fallback to the running app processes.");
+        int myPid = Process.myPid();
         ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
 
         List<ActivityManager.RunningAppProcessInfo> runningAppProcesses = manager.getRunningAppProcesses();
 
         if (runningAppProcesses == null) {
             SnapLogger.v("Running App Processes list is null. Assume this is not the forked process. Hurrah Android!");
-            return false;
+            return null;
         }
 
         for (ActivityManager.RunningAppProcessInfo processInfo : runningAppProcesses) {
             if (processInfo.pid == myPid) {
-                String currentProcName = processInfo.processName;
-                if (!TextUtils.isEmpty(currentProcName)
-                        && currentProcName.equals(context .getPackageName() + ":snap_service_fork")) {
-                    return true;
-                }
+                return processInfo.processName;
             }
         }
 
-        return false;
+        return null;
+    }
+
+    /**
+     * Reads the current process name from <code>/proc/self/cmdline</code>, which holds it NUL-terminated.
+     *
+     * @return The current process name, or null if it couldn't be read.
+     */
+    private static String readProcessNameFromCmdline() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            return end == 0 ? null : new String(buffer, 0, end, "UTF-8").trim();
+        } catch (IOException ex) {
+            SnapLogger.v("Error reading /proc/self/cmdline", ex);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
     }
 }
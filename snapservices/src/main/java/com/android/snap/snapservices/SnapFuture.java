@@ -0,0 +1,213 @@
+package com.android.snap.snapservices;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a request submitted with {@link SnapServicesContext#submit(android.content.Intent, Class)}.
+ *
+ * <p>It's completed on the worker thread of the Snap Service, with the value returned by
+ * {@link SnapService#onHandleIntentForResult(android.content.Intent)}, or with the exception it threw (once it ran
+ * out of retries, see {@link SnapService#getRetryPolicy()}). Requests that are cancelled, or dropped without being
+ * handled (ex: past their deadline), complete as cancelled.</p>
+ *
+ * <p>Rather than blocking on {@link #get()}, callbacks can be added to be called on any {@link Executor} once it
+ * completes.</p>
+ *
+ * @param <R> The type of the result.
+ */
+public final class SnapFuture<R> extends SnapWorkHandle implements Future<R> {
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private final Class<R> resultType;
+
+    private int mState = STATE_PENDING;
+    private R mResult;
+    private Throwable mError;
+    /**
+     * Callbacks waiting for this future to complete. Null once it did.
+     */
+    private List<Runnable> mCallbacks = new ArrayList<>(1);
+
+    SnapFuture(SnapWork work, Class<R> resultType) {
+        super(work);
+        this.resultType = resultType;
+    }
+
+    /**
+     * Calls the callback, on the executor, once this future completes. If it already did, the callback is
+     * handed to the executor right away.
+     *
+     * @param callback The callback.
+     * @param executor Where the callback is called (ex: a {@link android.os.Handler} of the main thread).
+     */
+    public void addCallback(final SnapFutureCallback<? super R> callback, final Executor executor) {
+        if (callback == null || executor == null) {
+            throw new IllegalArgumentException("The callback and the executor can't be null");
+        }
+
+        Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyCallback(callback);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    SnapLogger.e("Callback rejected [future=" + SnapFuture.this + "]", ex);
+                }
+            }
+        };
+
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(dispatch);
+                return;
+            }
+        }
+        dispatch.run();
+    }
+
+    private void notifyCallback(SnapFutureCallback<? super R> callback) {
+        R result;
+        Throwable error;
+        synchronized (this) {
+            result = mResult;
+            error = mState == STATE_CANCELLED ? new CancellationException() : mError;
+        }
+
+        if (error != null) {
+            callback.onFailure(error);
+        } else {
+            callback.onSuccess(result);
+        }
+    }
+
+    /**
+     * Cancels the request (see {@link SnapWorkHandle#cancel()}). A request already running isn't interrupted, but
+     * this future completes as cancelled right away.
+     *
+     * @param mayInterruptIfRunning Ignored, as running requests are only cancelled cooperatively (see
+     *                              {@link SnapService#isCancelled()}).
+     * @return False if it already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(STATE_CANCELLED, null, null)) return false;
+
+        super.cancel();
+        return true;
+    }
+
+    @Override
+    public boolean cancel() {
+        return cancel(false);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_PENDING;
+    }
+
+    @Override
+    public synchronized R get() throws InterruptedException, ExecutionException {
+        while (mState == STATE_PENDING) {
+            wait();
+        }
+        return getDone();
+    }
+
+    @Override
+    public synchronized R get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (mState == STATE_PENDING) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return getDone();
+    }
+
+    private R getDone() throws ExecutionException {
+        switch (mState) {
+            case STATE_CANCELLED:
+                throw new CancellationException();
+            case STATE_FAILED:
+                throw new ExecutionException(mError);
+            default:
+                return mResult;
+        }
+    }
+
+    /**
+     * Completes this future with the result produced by the Snap Service.
+     */
+    void set(Object result) {
+        if (result != null && !resultType.isInstance(result)) {
+            setException(new ClassCastException("Expected a result of " + resultType.getName()
+                    + " but got " + result.getClass().getName()));
+            return;
+        }
+
+        complete(STATE_SUCCEEDED, resultType.cast(result), null);
+    }
+
+    /**
+     * Completes this future with the exception the Snap Service failed with.
+     */
+    void setException(Throwable error) {
+        complete(STATE_FAILED, null, error);
+    }
+
+    /**
+     * Called once the work is finished. If the Snap Service didn't complete this future, the work was dropped
+     * without being handled.
+     */
+    void onWorkFinished() {
+        complete(STATE_CANCELLED, null, null);
+    }
+
+    private boolean complete(int state, R result, Throwable error) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (mState != STATE_PENDING) return false;
+
+            mState = state;
+            mResult = result;
+            mError = error;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,25 @@
+package com.android.snap.snapservices;
+
+/**
+ * Receives the outcome of a request submitted with {@link SnapServicesContext#submit(android.content.Intent, Class)}.
+ * See {@link SnapFuture#addCallback(SnapFutureCallback, java.util.concurrent.Executor)}.
+ *
+ * @param <R> The type of the result.
+ */
+public interface SnapFutureCallback<R> {
+
+    /**
+     * Called with the result produced by {@link SnapService#onHandleIntentForResult(android.content.Intent)}.
+     *
+     * @param result The result. May be null.
+     */
+    void onSuccess(R result);
+
+    /**
+     * Called when the Snap Service failed to handle the request, or it was cancelled (with a
+     * {@link java.util.concurrent.CancellationException}).
+     *
+     * @param error What the request failed with.
+     */
+    void onFailure(Throwable error);
+}
@@ -7,12 +7,23 @@ import android.content.Intent;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.WorkerThread;
 
 import com.android.snap.snapservices.binder.ISnapBinder;
+import com.android.snap.snapservices.configuration.SnapRetryPolicy;
 import com.android.snap.snapservices.context.SnapContextWrapper;
+import com.android.snap.snapservices.ipc.SnapSharedPayload;
 import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.metrics.SnapMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>SnapService is a class based on {@link android.app.IntentService}, that handle asynchronous
@@ -30,33 +41,197 @@ import com.android.snap.snapservices.logger.SnapLogger;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.</p>
  *
- * <p>All requests are handled on a single worker thread -- they may take as
+ * <p>By default, all requests are handled on a single worker thread -- they may take as
  * long as necessary (and will not block the application's main loop), but
  * only one request will be processed at a time.</p>
+ *
+ * <p>Services doing CPU-bound work may use {@link #SnapService(String, int)} to handle up to
+ * <var>maxConcurrency</var> requests in parallel, each on its own worker thread. Requests still start in the
+ * order they arrive, and the service is only stopped once all of them are done.</p>
+ *
+ * <p>When {@link com.android.snap.snapservices.configuration.SnapConfigOptions.Builder#setSharedWorkerPoolSize(int)}
+ * is set, no thread is created per service. The requests of all Snap Services run on a single bounded pool
+ * instead, still following the ordering and concurrency rules above. In this mode, the worker thread
+ * has no {@link Looper}.</p>
  */
 public abstract class SnapService extends SnapContextWrapper {
 
     private String mName;
+    private final int mMaxConcurrency;
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
     private volatile HandlerThread mThread;
+    private volatile ThreadPoolExecutor mWorkerPool;
+    private volatile SnapWorkQueue mWorkQueue;
+    /**
+     * Work delivered to {@link #onStartCommand(Intent, int)} that didn't reach the queue yet, by start id.
+     * Subclasses may call through later, or with another intent, and still get the same work.
+     */
+    private final Map<Integer, SnapWork> mDeliveredWork = new ConcurrentHashMap<>();
 
-    private final class ServiceHandler extends Handler {
+    /**
+     * Runs the work of a single threaded service on its own looper.
+     */
+    private final class ServiceHandler extends Handler implements Executor {
         ServiceHandler(Looper looper) {
             super(looper);
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            SnapLogger.v("[name=" + mName + ";handleMessage=" + msg + "]");
-            onHandleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
+        public void execute(Runnable command) {
+            if (!post(command)) {
+                // the looper already quit.
+                throw new RejectedExecutionException("SnapService[" + mName + "] was destroyed");
+            }
+        }
+    }
+
+    /**
+     * The work being handled on the current worker thread, so {@link #isCancelled()} can tell if it was cancelled.
+     */
+    private static final ThreadLocal<SnapWork> sCurrentWork = new ThreadLocal<>();
+
+    private final SnapWorkQueue.WorkHandler mWorkHandler = new SnapWorkQueue.WorkHandler() {
+        @Override
+        public void handleWork(SnapWork work) {
+            SnapLogger.v("[name=" + mName + ";handleWork=" + work + "]");
+            SnapActivityManager.getDefault().onWorkStarted(work);
+            if (work.isCancelled()) {
+                SnapLogger.v("Work cancelled before it ran [name=" + mName + ";work=" + work + "]");
+                finishWork(work);
+                return;
+            }
+            if (work.isExpired()) {
+                SnapLogger.d("Work past its deadline. Dropping it [name=" + mName + ";work=" + work + "]");
+                SnapMetrics.onWorkExpired();
+                finishWork(work);
+                return;
+            }
+
+            boolean retrying = false;
+            sCurrentWork.set(work);
+            try {
+                Object result = onHandleIntentForResult(work.getIntent());
+                SnapFuture<?> future = work.getFuture();
+                if (future != null) {
+                    future.set(result);
+                }
+            } catch (RuntimeException ex) {
+                retrying = retry(work, ex);
+            } finally {
+                sCurrentWork.remove();
+                // work being retried is still pending, so the service isn't stopped in the meantime.
+                if (!retrying) {
+                    finishWork(work);
+                }
+            }
+        }
+
+        @Override
+        public void rejectWork(SnapWork work, RejectedExecutionException error) {
+            SnapActivityManager.getDefault().onWorkStarted(work);
+            SnapFuture<?> future = work.getFuture();
+            if (future != null) {
+                future.setException(error);
+            }
+            finishWork(work);
+        }
+    };
+
+    /**
+     * Removes the work from the queue, if it didn't start running yet.
+     *
+     * @return True if it was removed, so it will never be handled.
+     */
+    boolean removeWork(SnapWork work) {
+        SnapWorkQueue workQueue = mWorkQueue;
+        return workQueue != null && workQueue.remove(work);
+    }
+
+    /**
+     * Raises the priority of the work, moving it ahead in the queue if it's waiting there.
+     *
+     * @see SnapWork#raisePriority(int, long)
+     */
+    void raiseWorkPriority(SnapWork work, int priority, long orderingTime) {
+        SnapWorkQueue workQueue = mWorkQueue;
+        if (workQueue != null) {
+            workQueue.raisePriority(work, priority, orderingTime);
+        } else {
+            work.raisePriority(priority, orderingTime);
         }
     }
 
+    /**
+     * Wraps up work that was handled, dropped or removed from the queue, stopping the service if it was the
+     * most recent start.
+     */
+    void finishWork(SnapWork work) {
+        SnapSharedPayload.release(work.getIntent());
+        SnapActivityManager.getDefault().onWorkFinished(work);
+        stopSelf(work.getStartId());
+    }
+
+    /**
+     * Schedules the failed work to be handled again, following the {@link #getRetryPolicy()}.
+     *
+     * @param work The work that failed.
+     * @param error What it failed with. Thrown again if it's not retryable, unless the request has a future.
+     * @return True if the work will be retried, false if it ran out of attempts or its future failed.
+     */
+    private boolean retry(final SnapWork work, RuntimeException error) {
+        SnapRetryPolicy retryPolicy = getRetryPolicy();
+        SnapFuture<?> future = work.getFuture();
+        if (retryPolicy == null || !retryPolicy.isRetryable(error)) {
+            if (future == null) {
+                throw error;
+            }
+            // the error is reported through the future of the request instead.
+            SnapLogger.w("Failed [name=" + mName + ";work=" + work + "]", error);
+            future.setException(error);
+            return false;
+        }
+
+        int attempts = work.onAttemptFailed();
+        if (attempts >= retryPolicy.getMaxAttempts()) {
+            SnapLogger.w("Giving up [name=" + mName + ";attempts=" + attempts + ";work=" + work + "]", error);
+            SnapMetrics.onRetryGivenUp();
+            if (future != null) {
+                future.setException(error);
+            }
+            return false;
+        }
+
+        long delay = retryPolicy.getDelay(attempts);
+        SnapLogger.w("Retrying in " + delay + "ms [name=" + mName + ";attempts=" + attempts + ";work=" + work + "]",
+                error);
+        SnapMetrics.onRetryScheduled();
+        work.setRetryTimer(SnapActivityManager.getDefault().scheduleRetry(new Runnable() {
+            @Override
+            public void run() {
+                mWorkQueue.enqueue(work);
+            }
+        }, delay));
+        return true;
+    }
+
     public SnapService(String name) {
+        this(name, 1);
+    }
+
+    /**
+     * Creates a Snap Service that handles up to <var>maxConcurrency</var> intents at the same time.
+     *
+     * @param name Used to name the worker thread(s), important only for debugging.
+     * @param maxConcurrency The maximum number of intents processed in parallel. Must be at least 1.
+     */
+    public SnapService(String name, int maxConcurrency) {
         super(null);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1 [name=" + name + "]");
+        }
         mName = name;
+        mMaxConcurrency = maxConcurrency;
     }
 
     /**
@@ -72,19 +247,44 @@ public abstract class SnapService extends SnapContextWrapper {
      * Called by the SnapServicesContext when the service is first created.
      */
     protected void onCreate() {
-        SnapLogger.v("onCreate called [name=" + mName + "]");
-        mThread = new HandlerThread("SnapService[" + mName + "]");
-        mThread.start();
+        SnapLogger.v("onCreate called [name=" + mName + ";maxConcurrency=" + mMaxConcurrency + "]");
+        Executor executor = SnapActivityManager.getDefault().getSharedWorkerPool();
+        if (executor != null) {
+            // all Snap Services share the same bounded pool. The work queue keeps the per service ordering.
+            SnapLogger.v("Using the shared worker pool [name=" + mName + "]");
+        } else if (mMaxConcurrency == 1) {
+            mThread = new HandlerThread("SnapService[" + mName + "]");
+            mThread.start();
 
-        mServiceLooper = mThread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper);
+            mServiceLooper = mThread.getLooper();
+            mServiceHandler = new ServiceHandler(mServiceLooper);
+            executor = mServiceHandler;
+        } else {
+            mWorkerPool = new ThreadPoolExecutor(mMaxConcurrency, mMaxConcurrency, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new SnapThreadFactory("SnapService[" + mName + "]"));
+            executor = mWorkerPool;
+        }
+
+        mWorkQueue = new SnapWorkQueue(mName, executor, mMaxConcurrency, mWorkHandler);
+    }
+
+    /**
+     * Called by the SnapActivityManager to deliver a new request to this service.
+     *
+     * @param work The request to deliver, already with its start id.
+     */
+    final void deliverWork(SnapWork work) {
+        mDeliveredWork.put(work.getStartId(), work);
+        onStartCommand(work.getIntent(), work.getStartId());
     }
 
     /**
      * This is the initial method that is going to be called to deliver the intent.
      * Afterwards, the intent is delivered to the current service internal queue, where
      * it's going to be processed inside its own worker thread.
-     * All intents are processed in the order they arrive, one at a time.
+     * Intents start following the priority they were started with (see
+     * {@link SnapServicesContext#startService(Intent, int)}) and, for the same priority, in the order
+     * they arrive, at most <var>maxConcurrency</var> at a time.
      *
      * @param intent  The intent with all the details for the service to process this request.
      * @param startId A unique integer representing this specific request to
@@ -92,15 +292,24 @@ public abstract class SnapService extends SnapContextWrapper {
      */
     protected void onStartCommand(Intent intent, int startId) {
         SnapLogger.v("onStartCommand called [name=" + mName + ";intent=" + intent + ";startId=" + startId + "]");
-        Message msg = mServiceHandler.obtainMessage();
-        msg.obj = intent;
-        msg.arg1 = startId;
-        mServiceHandler.sendMessage(msg);
+        SnapWork work = mDeliveredWork.remove(startId);
+        if (work == null) {
+            work = new SnapWork(intent, SnapServicesContext.PRIORITY_DEFAULT, SystemClock.uptimeMillis(), 0);
+            work.setStartId(startId);
+        } else if (intent != work.getIntent()) {
+            // the subclass handed over another intent. That's the one it wants handled.
+            work.replaceIntent(intent);
+        }
+        mWorkQueue.enqueue(work);
     }
 
     /**
      * Starts a Snap Service in foreground.
      *
+     * <p>Once in foreground, calling this again with the same notification id only updates the notification
+     * (ex: to report progress), which is cheap. Frequent updates are rate limited, see
+     * {@link com.android.snap.snapservices.configuration.SnapConfigOptions.Builder#setForegroundUpdateInterval(long)}.</p>
+     *
      * @param notificationId The ID of the notification that will be shown.
      * @param notification The notification to be shown whilst the service runs in foreground.
      */
@@ -127,7 +336,38 @@ public abstract class SnapService extends SnapContextWrapper {
     public void onDestroy() {
         SnapLogger.v("onDestroy called [name=" + mName + "]");
         stopForeground();
-        mServiceLooper.quit();
+        if (mServiceLooper != null) {
+            mServiceLooper.quit();
+        }
+        if (mWorkerPool != null) {
+            mWorkerPool.shutdown();
+        }
+    }
+
+    /**
+     * Defines how long this Snap Service stays alive once it has no more work to do, before being destroyed.
+     * If new work arrives in the meantime, this same instance handles it, without being created again.
+     *
+     * <p>Idle Snap Services are destroyed right away when the system is running low on memory.</p>
+     *
+     * @return The idle timeout, in milliseconds, or a negative value to use the one defined in
+     * {@link com.android.snap.snapservices.configuration.SnapConfigOptions.Builder#setServiceIdleTimeout(long)}.
+     */
+    protected long getIdleTimeout() {
+        return -1;
+    }
+
+    /**
+     * Defines if, and when, the requests that fail are handled again. A request fails when
+     * {@link #onHandleIntent(Intent)} throws.
+     *
+     * <p>The retries are scheduled in memory, and the request is still pending while waiting for them, so this
+     * Snap Service isn't destroyed in the meantime.</p>
+     *
+     * @return The retry policy, or null (the default) to never retry.
+     */
+    protected SnapRetryPolicy getRetryPolicy() {
+        return null;
     }
 
     public ISnapBinder onBind(Intent intent) {
@@ -149,7 +389,8 @@ public abstract class SnapService extends SnapContextWrapper {
 
     /**
      * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
+     * Only one Intent is processed at a time (unless the service was created with a
+     * <var>maxConcurrency</var> bigger than one), but the processing happens on a
      * worker thread that runs independently from other application logic.
      * So, if this code takes a long time, it will hold up other requests to
      * the same IntentService, but it will not hold up anything else.
@@ -159,4 +400,31 @@ public abstract class SnapService extends SnapContextWrapper {
      */
     @WorkerThread
     protected abstract void onHandleIntent(Intent intent);
+
+    /**
+     * The same as {@link #onHandleIntent(Intent)}, but producing a result for requests submitted with
+     * {@link SnapServicesContext#submit(Intent, Class)}. Snap Services that produce results override this one
+     * instead, and it's called for every request.
+     *
+     * @param intent The value passed to {@link SnapServicesContext#submit(Intent, Class)} or
+     *               {@link SnapServicesContext#startService(Intent)}.
+     * @return The result, completing the {@link SnapFuture} of the request. Ignored if it was started without one.
+     */
+    @WorkerThread
+    protected Object onHandleIntentForResult(Intent intent) {
+        onHandleIntent(intent);
+        return null;
+    }
+
+    /**
+     * Tells if the request being handled on this thread was cancelled (see {@link SnapWorkHandle#cancel()}).
+     * Long running work should check it once in a while, and return early when it's true.
+     *
+     * @return True if the request being handled was cancelled. Always false outside {@link #onHandleIntent(Intent)}.
+     */
+    @WorkerThread
+    protected final boolean isCancelled() {
+        SnapWork work = sCurrentWork.get();
+        return work != null && work.isCancelled();
+    }
 }
@@ -0,0 +1,135 @@
+package com.android.snap.snapservices;
+
+import com.android.snap.snapservices.configuration.SnapConfigOptions;
+import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.registry.SnapServiceRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates the Snap Services instances.
+ *
+ * <p>Snap Services found in a {@link SnapServiceRegistry} are created with a direct constructor call.
+ * The others fall back to reflection, with the class lookups cached so they are only paid once per class.</p>
+ */
+final class SnapServiceFactory {
+
+    private final SnapServiceRegistry[] mRegistries;
+    private final ConcurrentMap<String, Class<?>> mClasses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Boolean> mIsSnapService = new ConcurrentHashMap<>();
+
+    SnapServiceFactory(List<SnapServiceRegistry> registries) {
+        this.mRegistries = registries.toArray(new SnapServiceRegistry[registries.size()]);
+    }
+
+    /**
+     * Creates the factory for the supplied options. The configured registry, if any, is asked first, and then
+     * the ones generated by the annotation processor for each module.
+     *
+     * @param options The Snap Configuration Options.
+     * @return The Snap Service factory.
+     */
+    static SnapServiceFactory create(SnapConfigOptions options) {
+        List<SnapServiceRegistry> registries = new ArrayList<>();
+        if (options.getServiceRegistry() != null) {
+            registries.add(options.getServiceRegistry());
+        }
+        loadGeneratedRegistries(registries);
+        return new SnapServiceFactory(registries);
+    }
+
+    private static void loadGeneratedRegistries(List<SnapServiceRegistry> registries) {
+        int generated = 0;
+        try {
+            for (SnapServiceRegistry registry : ServiceLoader.load(SnapServiceRegistry.class,
+                    SnapServiceFactory.class.getClassLoader())) {
+                registries.add(registry);
+                generated++;
+            }
+        } catch (ServiceConfigurationError ex) {
+            SnapLogger.e("Error loading the generated Snap Service registries", ex);
+        }
+
+        if (generated == 0) {
+            SnapLogger.d("No generated Snap Service registry found. "
+                    + "Unregistered Snap Services are created through reflection.");
+        } else {
+            SnapLogger.d("Using " + generated + " generated Snap Service registries.");
+        }
+    }
+
+    /**
+     * Creates a new instance of the supplied Snap Service.
+     *
+     * @param className The class name of the Snap Service.
+     * @return The new Snap Service, or null if it couldn't be created.
+     */
+    SnapService newInstance(String className) {
+        for (SnapServiceRegistry registry : mRegistries) {
+            SnapService snapService = registry.newInstance(className);
+            if (snapService != null) {
+                return snapService;
+            }
+        }
+
+        SnapLogger.v("Snap Service not registered. Creating it through reflection [className=" + className + "]");
+        Class<?> workServiceClass = getClass(className);
+        if (workServiceClass == null) return null;
+
+        Object workerServiceObject = null;
+        try {
+            workerServiceObject = workServiceClass.newInstance();
+        } catch (Exception e) {
+            SnapLogger.e("Error instantiating class", e);
+        }
+
+        if (workerServiceObject == null || !(workerServiceObject instanceof SnapService))
+            return null;
+
+        return (SnapService) workerServiceObject;
+    }
+
+    /**
+     * Verifies if the supplied class is a Snap Service.
+     *
+     * @param className The class name to verify.
+     * @return True if it extends from SnapService, false otherwise.
+     */
+    boolean isSnapService(String className) {
+        for (SnapServiceRegistry registry : mRegistries) {
+            if (registry.contains(className)) {
+                return true;
+            }
+        }
+
+        Boolean isSnapService = mIsSnapService.get(className);
+        if (isSnapService == null) {
+            Class<?> serviceClass = getClass(className);
+            isSnapService = serviceClass != null && SnapService.class.isAssignableFrom(serviceClass);
+            mIsSnapService.put(className, isSnapService);
+        }
+        return isSnapService;
+    }
+
+    private Class<?> getClass(String className) {
+        Class<?> serviceClass = mClasses.get(className);
+        if (serviceClass != null) {
+            return serviceClass;
+        }
+
+        try {
+            serviceClass = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            SnapLogger.e("Error getting class for name", e);
+            return null;
+        }
+
+        mClasses.put(className, serviceClass);
+        return serviceClass;
+    }
+}
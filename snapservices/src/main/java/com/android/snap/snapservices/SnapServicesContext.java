@@ -4,12 +4,17 @@ import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.support.annotation.RestrictTo;
 
 import com.android.snap.snapservices.alarms.SnapAlarmManager;
+import com.android.snap.snapservices.alarms.SnapForkedProxyReceiver;
 import com.android.snap.snapservices.binder.SnapServiceConnection;
+import com.android.snap.snapservices.configuration.SnapBackoffPolicy;
 import com.android.snap.snapservices.configuration.SnapConfigOptions;
 import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.scheduler.SnapTimer;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -46,10 +51,30 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class SnapServicesContext {
 
+    /**
+     * Priority for requests that can wait for everything else, like analytics uploads.
+     */
+    public static final int PRIORITY_LOW = -1;
+
+    /**
+     * Priority of every request started without an explicit priority.
+     */
+    public static final int PRIORITY_DEFAULT = 0;
+
+    /**
+     * Priority for requests the user is waiting for, like a manual sync.
+     */
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * When a request stops being worth handling, as a {@link System#currentTimeMillis()} time.
+     */
+    private static final String EXTRA_DEADLINE = "com.android.snap.snapservices.EXTRA_DEADLINE";
+
     private static SnapServicesContext sInstance;
     private final Context context;
-    private static boolean mInitialized;
-    private static boolean sIsInitialized = false;
+    private static volatile boolean mInitialized;
+    private static volatile boolean sIsInitialized = false;
 
     private final SnapConfigOptions options;
     private final static AtomicInteger mStartId = new AtomicInteger(1);
@@ -89,7 +114,7 @@ public class SnapServicesContext {
         }
     }
 
-    public synchronized static boolean isRunning() {
+    public static boolean isRunning() {
         return sIsInitialized;
     }
 
@@ -123,23 +148,278 @@ public class SnapServicesContext {
      *               name it is targeted to.  Additional values
      *               may be included in the Intent extras to supply arguments along with
      *               this specific start call.
+     * @see #enqueueService(Intent)
+     */
+    public static void startService(Intent intent) {
+        enqueueService(intent);
+    }
+
+    /**
+     * The same as {@link #startService(Intent)}, but with a priority for this request.
+     *
+     * <p>The requests of each Snap Service are handled by order of priority. Requests waiting in the queue slowly
+     * gain priority (see {@link SnapConfigOptions.Builder#setPriorityAgingInterval(long)}), so the low priority
+     * ones are still handled even when there's a constant flow of high priority requests.</p>
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param priority The priority of this request. Higher values are handled first. You may use
+     *                 {@link #PRIORITY_LOW}, {@link #PRIORITY_DEFAULT} or {@link #PRIORITY_HIGH}.
      */
-    public synchronized static void startService(Intent intent) {
+    public static void startService(Intent intent, int priority) {
+        enqueueService(intent, priority);
+    }
+
+    /**
+     * The same as {@link #startService(Intent)}, but returns the handle of this request, to cancel it.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @return The handle of this request (see {@link SnapWorkHandle}). Null if the library wasn't initialized or
+     * the intent is null.
+     */
+    public static SnapWorkHandle enqueueService(Intent intent) {
+        return enqueueService(intent, SnapActivityManager.getForwardedPriority(intent));
+    }
+
+    /**
+     * The same as {@link #enqueueService(Intent)}, but with a priority for this request.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param priority The priority of this request.
+     * @return The handle of this request. Null if the library wasn't initialized or the intent is null.
+     * @see #startService(Intent, int)
+     */
+    public static SnapWorkHandle enqueueService(Intent intent, int priority) {
+        if (!mInitialized) {
+            SnapLogger.w("Not initialized. To use, please initialize first.");
+            return null;
+        }
+
+        return SnapActivityManager.getDefault().startSnapService(intent, priority);
+    }
+
+    public static void startServiceOnOtherProcess(Intent intent) {
+        enqueueServiceOnOtherProcess(intent);
+    }
+
+    /**
+     * The same as {@link #startServiceOnOtherProcess(Intent)}, but with a priority for this request.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param priority The priority of this request.
+     * @see #startService(Intent, int)
+     */
+    public static void startServiceOnOtherProcess(Intent intent, int priority) {
+        enqueueServiceOnOtherProcess(intent, priority);
+    }
+
+    /**
+     * The same as {@link #startServiceOnOtherProcess(Intent)}, but returns the handle of this request.
+     * It can only cancel the request when called from the other process.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @return The handle of this request. Null if the library wasn't initialized or the intent is null.
+     * @see #enqueueService(Intent)
+     */
+    public static SnapWorkHandle enqueueServiceOnOtherProcess(Intent intent) {
+        return enqueueServiceOnOtherProcess(intent, SnapActivityManager.getForwardedPriority(intent));
+    }
+
+    /**
+     * The same as {@link #enqueueServiceOnOtherProcess(Intent)}, but with a priority for this request.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param priority The priority of this request.
+     * @return The handle of this request. Null if the library wasn't initialized or the intent is null.
+     */
+    public static SnapWorkHandle enqueueServiceOnOtherProcess(Intent intent, int priority) {
+        if (!mInitialized) {
+            SnapLogger.w("Not initialized. To use, please initialize first.");
+            return null;
+        }
+
+        return SnapActivityManager.getDefault().startSnapServiceOnAnotherProcess(intent, priority);
+    }
+
+    /**
+     * The same as {@link #startService(Intent)}, but with a future completed with the result produced by the
+     * Snap Service (see {@link SnapService#onHandleIntentForResult(Intent)}), or with the exception it threw.
+     * The Snap Service runs on this process, even if it's the other process. With several forked processes, it
+     * must be submitted on the one the Snap Service is placed on, or the future fails with an
+     * {@link IllegalStateException}. The request isn't journaled, even with durable work.
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param resultType The type of the result. The future fails with a {@link ClassCastException} if the Snap
+     *                   Service returns anything else.
+     * @return The future of the result. Null if the library wasn't initialized or the intent is null.
+     */
+    public static <R> SnapFuture<R> submit(Intent intent, Class<R> resultType) {
+        return submit(intent, PRIORITY_DEFAULT, resultType);
+    }
+
+    /**
+     * The same as {@link #submit(Intent, Class)}, but with a priority for this request.
+     *
+     * @see #startService(Intent, int)
+     */
+    public static <R> SnapFuture<R> submit(Intent intent, int priority, Class<R> resultType) {
+        if (resultType == null) {
+            throw new IllegalArgumentException("The result type can't be null");
+        }
+
+        if (!mInitialized) {
+            SnapLogger.w("Not initialized. To use, please initialize first.");
+            return null;
+        }
+
+        return SnapActivityManager.getDefault().submitSnapService(intent, priority, resultType);
+    }
+
+    /**
+     * Sets a deadline on the request: if it's still waiting on the Snap Service queue once the timeout passes,
+     * it's dropped without being handled (ex: a prefetch that is useless after a few seconds). Requests already
+     * running aren't interrupted.
+     *
+     * <p>The timeout starts now, so set it right before starting the Snap Service. It's kept when the request
+     * is handled on another process. The deadline is a wall clock time, so it still holds when durable work is
+     * replayed after a reboot, but it moves with wall clock changes.</p>
+     *
+     * @param intent The intent the Snap Service will be started with.
+     * @param timeoutMillis How long the request is worth handling, in milliseconds.
+     * @return The same intent, for chaining.
+     */
+    public static Intent setDeadline(Intent intent, long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative");
+        }
+
+        intent.putExtra(EXTRA_DEADLINE, System.currentTimeMillis() + timeoutMillis);
+        return intent;
+    }
+
+    /**
+     * @return The deadline set on the intent, as a {@link System#currentTimeMillis()} time, or 0 if it has none.
+     */
+    static long getDeadline(Intent intent) {
+        return intent.getLongExtra(EXTRA_DEADLINE, 0);
+    }
+
+    /**
+     * The same as {@link #startService(Intent)}, but only after a delay.
+     *
+     * <p>Short delays are kept in memory, without going through the AlarmManager, so they're cheap even for many
+     * Snap Services. They don't wake the device up: if it's asleep when the delay ends, the Snap Service is started
+     * once it wakes up. Delays longer than {@link SnapConfigOptions.Builder#setTimerAlarmThreshold(long)} are set
+     * on the {@link SnapAlarmManager} instead.</p>
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param delayMillis The delay, in milliseconds.
+     * @return The timer, to cancel the start. Null if the library wasn't initialized.
+     */
+    public static SnapTimer startServiceDelayed(Intent intent, long delayMillis) {
+        if (!mInitialized) {
+            SnapLogger.w("Not initialized. To use, please initialize first.");
+            return null;
+        }
+
+        if (intent == null) {
+            SnapLogger.d("Tried to start snap service with null intent. Do nothing.");
+            return null;
+        }
+
+        return SnapActivityManager.getDefault().startSnapServiceDelayed(intent, delayMillis);
+    }
+
+    /**
+     * Starts the Snap Service periodically, until the returned timer is cancelled.
+     *
+     * <p>The runs are kept in memory (see {@link #startServiceDelayed(Intent, long)}), so they stop when the process
+     * dies. Use the {@link SnapAlarmManager} for work that has to run even if the process is killed.</p>
+     *
+     * @param intent Identifies the Snap Service to be started.
+     * @param periodMillis The time, in milliseconds, until the first run and between runs.
+     * @param backoff How the time between runs grows. Use {@link SnapBackoffPolicy#fixed()} to keep it constant.
+     * @return The timer, to cancel the next runs. Null if the library wasn't initialized.
+     */
+    public static SnapTimer startServicePeriodic(Intent intent, long periodMillis, SnapBackoffPolicy backoff) {
+        if (!mInitialized) {
+            SnapLogger.w("Not initialized. To use, please initialize first.");
+            return null;
+        }
+
+        if (intent == null || backoff == null) {
+            SnapLogger.d("Tried to start snap service with null intent or backoff. Do nothing.");
+            return null;
+        }
+
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + periodMillis);
+        }
+
+        return SnapActivityManager.getDefault().startSnapServicePeriodic(intent, periodMillis, backoff);
+    }
+
+    /**
+     * Starts the other process (or processes, see {@link SnapConfigOptions.Builder#setForkedProcessCount(int)})
+     * ahead of time, when you know work is about to be started on it. The first
+     * {@link #startServiceOnOtherProcess(Intent)} then doesn't have to wait for the process to start.
+     *
+     * <p>With {@link SnapConfigOptions.Builder#killSeparateProcess(boolean)}, a prewarmed process that gets no work
+     * is stopped after {@link SnapConfigOptions.Builder#setForkedProcessIdleTimeout(long)}.</p>
+     */
+    public static void prewarmOtherProcess() {
         if (!mInitialized) {
             SnapLogger.w("Not initialized. To use, please initialize first.");
             return;
         }
 
-        SnapActivityManager.getDefault().startSnapService(intent);
+        SnapActivityManager.getDefault().prewarmForkedProcesses();
     }
 
-    public synchronized static void startServiceOnOtherProcess(Intent intent) {
+    /**
+     * Delivers a batch of Snap Intents forwarded by the other process to this one, in order.
+     *
+     * @param intents The forwarded Snap Intents.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void startForwardedServices(List<Intent> intents) {
+        if (!mInitialized) {
+            SnapLogger.w("Not initialized. To use, please initialize first.");
+            return;
+        }
+
+        SnapActivityManager.getDefault().deliverForwardedWork(intents);
+    }
+
+    /**
+     * Provides the proxy receiver of the forked process the Snap Service runs on, so an alarm started on a
+     * separate process doesn't have to be relayed there.
+     *
+     * @param intent The Snap Intent.
+     * @return The proxy receiver class. The first forked process one if the library wasn't initialized.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static Class<?> getForkedProxyReceiver(Intent intent) {
+        if (!mInitialized) {
+            return SnapForkedProxyReceiver.class;
+        }
+
+        return SnapActivityManager.getDefault().getForkedProxyReceiver(intent);
+    }
+
+    /**
+     * Called on the main process when a forked process reports how much work it has pending.
+     *
+     * @param processIndex The index of the forked process.
+     * @param load The number of Snap Intents pending on it.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onForkedProcessLoadReported(int processIndex, int load) {
         if (!mInitialized) {
             SnapLogger.w("Not initialized. To use, please initialize first.");
             return;
         }
 
-        SnapActivityManager.getDefault().startSnapServiceOnAnotherProcess(intent);
+        SnapActivityManager.getDefault().onForkedProcessLoadReported(processIndex, load);
     }
 
     /**
@@ -148,7 +428,7 @@ public class SnapServicesContext {
      * @param className The name of the service to be stopped.
      * @param startId The id which the Snap Service was started with
      */
-    synchronized static void stopSelfWorker(String className, int startId) {
+    static void stopSelfWorker(String className, int startId) {
         SnapActivityManager.getDefault().stopSelfWorker(className, startId);
     }
 
@@ -180,7 +460,7 @@ public class SnapServicesContext {
      *             receive the service object.
      * @see #unbindService
      */
-    public synchronized static boolean bindService(Intent service, SnapServiceConnection conn) {
+    public static boolean bindService(Intent service, SnapServiceConnection conn) {
         if (!mInitialized) {
             SnapLogger.w("Not initialized. To use, please initialize first.");
             return false;
@@ -200,7 +480,7 @@ public class SnapServicesContext {
      * @return True if successfully unbinded, false otherwise
      * @see #bindService
      */
-    public synchronized static boolean unbindService(SnapServiceConnection conn) {
+    public static boolean unbindService(SnapServiceConnection conn) {
         if (!mInitialized) {
             SnapLogger.w("Not initialized. To use, please initialize first.");
             return false;
@@ -214,7 +494,7 @@ public class SnapServicesContext {
      *
      * @return True if it is, false otherwise.
      */
-    public synchronized static boolean isThisTheOtherProcess() {
+    public static boolean isThisTheOtherProcess() {
         if (!mInitialized) {
             SnapLogger.w("Not initialized. To use, please initialize first.");
             return false;
@@ -239,14 +519,21 @@ public class SnapServicesContext {
      * @return The PendingIntent already prepared to be delivered to a SnapService OR, to an Android Service
      * if you passed that one instead.
      */
-    public synchronized static PendingIntent generatePendingIntentForService(Context context, Intent intent, int requestCode) {
+    public static PendingIntent generatePendingIntentForService(Context context, Intent intent, int requestCode) {
 
         boolean isSnapService = false;
-        try {
-            //checks if this intent is meant to a SnapService.
-            isSnapService = SnapService.class.isAssignableFrom(Class.forName(intent.getComponent().getClassName()));
-        } catch (ClassNotFoundException ex) {
-            SnapLogger.e("Error checking if class inside intent extends from SnapService", ex);
+        String className = intent.getComponent().getClassName();
+        SnapActivityManager activityManager = SnapActivityManager.getDefault();
+        if (activityManager != null) {
+            //checks if this intent is meant to a SnapService, without reflection if it is registered.
+            isSnapService = activityManager.isSnapService(className);
+        } else {
+            try {
+                //checks if this intent is meant to a SnapService.
+                isSnapService = SnapService.class.isAssignableFrom(Class.forName(className));
+            } catch (ClassNotFoundException ex) {
+                SnapLogger.e("Error checking if class inside intent extends from SnapService", ex);
+            }
         }
 
         if (isSnapService) {
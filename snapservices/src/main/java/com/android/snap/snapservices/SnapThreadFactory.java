@@ -0,0 +1,23 @@
+package com.android.snap.snapservices;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the worker threads used by the Snap Services, naming them as <var>prefix#n</var>
+ * so they are easy to spot while debugging.
+ */
+final class SnapThreadFactory implements ThreadFactory {
+
+    private final String mPrefix;
+    private final AtomicInteger mCount = new AtomicInteger(1);
+
+    SnapThreadFactory(String prefix) {
+        this.mPrefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, mPrefix + "#" + mCount.getAndIncrement());
+    }
+}
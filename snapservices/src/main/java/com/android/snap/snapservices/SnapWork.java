@@ -0,0 +1,240 @@
+package com.android.snap.snapservices;
+
+import android.content.Intent;
+
+import com.android.snap.snapservices.configuration.SnapCoalescingPolicy;
+import com.android.snap.snapservices.ipc.SnapSharedPayload;
+import com.android.snap.snapservices.journal.SnapJournal;
+import com.android.snap.snapservices.scheduler.SnapTimer;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Internal representation of a single request delivered to a Snap Service.
+ *
+ * <p>It holds the Intent that should be handled along with the start id it was delivered with, so the
+ * service can be stopped once all of its work is done.</p>
+ *
+ * <p>Work is ordered by its <em>ordering time</em>: the time it was submitted, moved back by the
+ * aging interval for each priority level. This way a higher priority request goes ahead of the
+ * lower priority ones, but only for a bounded amount of time: a low priority request that has waited
+ * long enough is eventually ordered before any newer request, so it can't starve.</p>
+ *
+ * <p>Work with a coalescing key may have its intent updated by newer requests with the same key,
+ * until it starts running (see {@link SnapCoalescingPolicy}). It then takes the higher priority of the two.</p>
+ *
+ * <p>With durable work, it also knows the record that journals its intent, to mark it done once it's handled.</p>
+ *
+ * <p>Work can be cancelled through its {@link SnapWorkHandle}, and dropped without being handled once its
+ * deadline (see {@link SnapServicesContext#setDeadline(Intent, long)}) passes. Work waiting to be retried keeps
+ * its retry timer, so cancelling it also cancels the retry.</p>
+ */
+final class SnapWork {
+
+    /**
+     * Orders work by its ordering time, and then by the order it was submitted.
+     */
+    static final Comparator<SnapWork> ORDER = new Comparator<SnapWork>() {
+        @Override
+        public int compare(SnapWork lhs, SnapWork rhs) {
+            if (lhs.mOrderingTime != rhs.mOrderingTime) {
+                return lhs.mOrderingTime < rhs.mOrderingTime ? -1 : 1;
+            }
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    };
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private volatile int mPriority;
+    private volatile long mOrderingTime;
+    private final long mSequence;
+    private final String mCoalescingKey;
+    private volatile Intent mIntent;
+    private volatile long mDeadline;
+    private boolean mStarted;
+    private boolean mFinished;
+    private volatile boolean mCancelled;
+    private int mStartId;
+    private long mJournalId = SnapJournal.NO_RECORD;
+    private int mAttempts;
+    private volatile SnapFuture<?> mFuture;
+    private volatile SnapTimer mRetryTimer;
+
+    /**
+     * @param intent The intent to deliver.
+     * @param priority The priority of this request.
+     * @param submitTime The time, in {@link android.os.SystemClock#uptimeMillis()}, this work was submitted at.
+     * @param agingInterval How long a request has to wait to be worth one priority level.
+     */
+    SnapWork(Intent intent, int priority, long submitTime, long agingInterval) {
+        this(intent, priority, submitTime, agingInterval, null);
+    }
+
+    /**
+     * @param coalescingKey The key used to coalesce newer requests into this one, or null if it can't be coalesced.
+     */
+    SnapWork(Intent intent, int priority, long submitTime, long agingInterval, String coalescingKey) {
+        this.mIntent = intent;
+        this.mDeadline = SnapServicesContext.getDeadline(intent);
+        this.mPriority = priority;
+        this.mOrderingTime = submitTime - priority * agingInterval;
+        this.mSequence = sSequence.getAndIncrement();
+        this.mCoalescingKey = coalescingKey;
+    }
+
+    Intent getIntent() {
+        return mIntent;
+    }
+
+    int getPriority() {
+        return mPriority;
+    }
+
+    String getCoalescingKey() {
+        return mCoalescingKey;
+    }
+
+    /**
+     * Updates this work with a newer intent, if it didn't start running yet.
+     *
+     * @param intent The newer intent.
+     * @param mode One of {@link SnapCoalescingPolicy#MODE_REPLACE} or {@link SnapCoalescingPolicy#MODE_MERGE}.
+     * @return True if the newer intent was coalesced into this work, false if this work already started.
+     */
+    synchronized boolean coalesce(Intent intent, @SnapCoalescingPolicy.CoalescingMode int mode) {
+        if (mStarted || mCancelled) return false;
+
+        Intent coalesced = mIntent;
+        if (mode == SnapCoalescingPolicy.MODE_MERGE) {
+            Intent merged = new Intent(mIntent);
+            merged.putExtras(intent);
+            mIntent = merged;
+        } else {
+            mIntent = intent;
+        }
+        mDeadline = SnapServicesContext.getDeadline(mIntent);
+        SnapSharedPayload.releaseCoalesced(coalesced, mIntent);
+        return true;
+    }
+
+    /**
+     * Raises the priority of this work to the one of a request coalesced into it, if it's higher. The caller must
+     * make sure this work isn't in a queue ordered by it meanwhile (see {@link SnapWorkQueue#raisePriority}).
+     *
+     * @param priority The priority of the coalesced request.
+     * @param orderingTime The ordering time of the coalesced request.
+     */
+    void raisePriority(int priority, long orderingTime) {
+        mPriority = Math.max(mPriority, priority);
+        mOrderingTime = Math.min(mOrderingTime, orderingTime);
+    }
+
+    /**
+     * Replaces the intent of this work, keeping everything else (coalescing key, journal record, future).
+     *
+     * @param intent The intent to be handled instead.
+     */
+    synchronized void replaceIntent(Intent intent) {
+        SnapSharedPayload.releaseCoalesced(mIntent, intent);
+        mIntent = intent;
+    }
+
+    /**
+     * Marks this work as running. From now on, no newer request is coalesced into it.
+     */
+    synchronized void markStarted() {
+        mStarted = true;
+    }
+
+    /**
+     * Marks this work as handled (or never to be handled).
+     *
+     * @return The journal record of this work, to be marked as done.
+     */
+    synchronized long markFinished() {
+        mFinished = true;
+        return mJournalId;
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Cancels this work, unless it already finished.
+     *
+     * @return True if it was cancelled, false if it had already finished or was already cancelled.
+     */
+    synchronized boolean cancel() {
+        if (mFinished || mCancelled) return false;
+
+        mCancelled = true;
+        return true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The future waiting for the result of this work, or null if it was started without one.
+     */
+    SnapFuture<?> getFuture() {
+        return mFuture;
+    }
+
+    void setFuture(SnapFuture<?> future) {
+        this.mFuture = future;
+    }
+
+    /**
+     * @return True if this work has a deadline, and it passed.
+     */
+    boolean isExpired() {
+        long deadline = mDeadline;
+        return deadline > 0 && System.currentTimeMillis() > deadline;
+    }
+
+    /**
+     * @return The timer of the last retry scheduled for this work, or null if it was never retried.
+     */
+    SnapTimer getRetryTimer() {
+        return mRetryTimer;
+    }
+
+    void setRetryTimer(SnapTimer retryTimer) {
+        this.mRetryTimer = retryTimer;
+    }
+
+    synchronized long getJournalId() {
+        return mJournalId;
+    }
+
+    synchronized void setJournalId(long journalId) {
+        this.mJournalId = journalId;
+    }
+
+    /**
+     * Counts a failed attempt to handle this work.
+     *
+     * @return How many attempts failed so far.
+     */
+    int onAttemptFailed() {
+        return ++mAttempts;
+    }
+
+    int getStartId() {
+        return mStartId;
+    }
+
+    void setStartId(int startId) {
+        this.mStartId = startId;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapWork[startId=" + mStartId + ";priority=" + mPriority + ";intent=" + mIntent + "]";
+    }
+}
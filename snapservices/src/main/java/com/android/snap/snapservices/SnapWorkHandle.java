@@ -0,0 +1,59 @@
+package com.android.snap.snapservices;
+
+/**
+ * A request to a Snap Service, returned by {@link SnapServicesContext#enqueueService(android.content.Intent)}.
+ * It can be used to cancel the request when it's no longer needed (ex: a search that is no longer visible).
+ *
+ * <p>A request still waiting in the Snap Service queue is removed from it, and never handled. A request already
+ * running can't be stopped, but {@link SnapService#isCancelled()} tells it to return early.</p>
+ *
+ * <p>Requests handled on another process can't be cancelled. Neither can requests coalesced into one that already
+ * started running (see {@link com.android.snap.snapservices.configuration.SnapCoalescingPolicy}). Cancelling a
+ * request that was coalesced into one still queued cancels that queued request.</p>
+ */
+public class SnapWorkHandle {
+
+    private final SnapWork work;
+
+    /**
+     * @param work The work, or null if it can't be cancelled.
+     */
+    SnapWorkHandle(SnapWork work) {
+        this.work = work;
+    }
+
+    /**
+     * Cancels the request, if it isn't finished yet.
+     *
+     * @return True if it was cancelled, false if it had already finished, was already cancelled or can't be cancelled.
+     */
+    public boolean cancel() {
+        return work != null && SnapActivityManager.getDefault().cancelWork(work);
+    }
+
+    /**
+     * @return True if the request was cancelled before finishing.
+     */
+    public boolean isCancelled() {
+        return work != null && work.isCancelled();
+    }
+
+    /**
+     * @return True if the request was handled, dropped or cancelled. Always false if it can't be cancelled,
+     * as it's not tracked.
+     */
+    public boolean isDone() {
+        return work != null && (work.isFinished() || work.isCancelled());
+    }
+
+    /**
+     * @return True if the request is handled on this process, so it can be cancelled.
+     */
+    public boolean isCancellable() {
+        return work != null;
+    }
+
+    SnapWork getWork() {
+        return work;
+    }
+}
@@ -0,0 +1,126 @@
+package com.android.snap.snapservices;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Queue holding the pending work of a single Snap Service.
+ *
+ * <p>Work is handed to the supplied {@link Executor} following its priority (see {@link SnapWork#ORDER}),
+ * and in the order it arrives for the same priority, but never more than
+ * <var>maxConcurrency</var> requests run at the same time. With a concurrency of one, this is the
+ * same "one request at a time" behaviour of an {@link android.app.IntentService}.</p>
+ */
+final class SnapWorkQueue {
+
+    /**
+     * Handles a single request taken out of the queue. Called on a thread of the executor.
+     */
+    interface WorkHandler {
+        void handleWork(SnapWork work);
+
+        /**
+         * Wraps up work the executor refused to run (ex: it was shut down), as if it had been handled.
+         * Called on the thread that scheduled it.
+         */
+        void rejectWork(SnapWork work, RejectedExecutionException error);
+    }
+
+    private final String mName;
+    private final Executor mExecutor;
+    private final int mMaxConcurrency;
+    private final WorkHandler mWorkHandler;
+
+    private final Queue<SnapWork> mPendingWork = new PriorityQueue<>(11, SnapWork.ORDER);
+    private int mRunningWork;
+
+    SnapWorkQueue(String name, Executor executor, int maxConcurrency, WorkHandler workHandler) {
+        this.mName = name;
+        this.mExecutor = executor;
+        this.mMaxConcurrency = maxConcurrency;
+        this.mWorkHandler = workHandler;
+    }
+
+    /**
+     * Adds the work to the queue and runs it as soon as there's a free worker and no work ahead of it.
+     *
+     * @param work The work to be handled.
+     */
+    void enqueue(SnapWork work) {
+        synchronized (this) {
+            mPendingWork.offer(work);
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Removes the work from the queue, if it's still waiting there.
+     *
+     * @param work The work to be removed.
+     * @return True if it was removed, false if it's already running or was never queued.
+     */
+    synchronized boolean remove(SnapWork work) {
+        return mPendingWork.remove(work);
+    }
+
+    /**
+     * Raises the priority of the work, moving it ahead in the queue if it's waiting there.
+     *
+     * @see SnapWork#raisePriority(int, long)
+     */
+    synchronized void raisePriority(SnapWork work, int priority, long orderingTime) {
+        // the queue is ordered by the priority, so the work can't change while it's in there.
+        boolean queued = mPendingWork.remove(work);
+        work.raisePriority(priority, orderingTime);
+        if (queued) {
+            mPendingWork.offer(work);
+        }
+    }
+
+    /**
+     * Hands as much pending work to the executor as the concurrency limit allows.
+     */
+    private void scheduleNext() {
+        while (true) {
+            final SnapWork work;
+            synchronized (this) {
+                if (mRunningWork >= mMaxConcurrency || mPendingWork.isEmpty()) {
+                    return;
+                }
+                work = mPendingWork.poll();
+                mRunningWork++;
+            }
+
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mWorkHandler.handleWork(work);
+                        } finally {
+                            onWorkFinished();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                SnapLogger.e("Work rejected [name=" + mName + ";work=" + work + "]", ex);
+                synchronized (this) {
+                    mRunningWork--;
+                }
+                // the rest of the pending work is rejected the same way, so none of it is left behind.
+                mWorkHandler.rejectWork(work, ex);
+            }
+        }
+    }
+
+    private void onWorkFinished() {
+        synchronized (this) {
+            mRunningWork--;
+        }
+        scheduleNext();
+    }
+}
@@ -13,11 +13,20 @@ import com.android.snap.snapservices.logger.SnapLogger;
 public abstract class BaseSnapProxyReceiver extends BroadcastReceiver {
 
     public static final String EXTRA_SNAP_INTENT = "com.android.snap.extra.SNAP_SERVICE";
+    /**
+     * Only starts the process this receiver runs on, without starting any Snap Service.
+     */
+    public static final String ACTION_PREWARM = "com.android.snap.action.PREWARM";
 
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent == null) return;
+        if (ACTION_PREWARM.equals(intent.getAction())) {
+            SnapLogger.v("Process prewarmed.");
+            return;
+        }
         SnapLogger.v("Received proxy request for intent: " + intent);
+        SnapAlarmManager.onAlarmFired(context, intent);
         SnapLogger.d("Forwarding as snap Service.");
 
         startSnapService(SnapAlarmManager.convertIntentToSnapIntent(intent));
@@ -0,0 +1,80 @@
+package com.android.snap.snapservices.alarms;
+
+import android.content.Intent;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Snap Intent scheduled by the {@link SnapAlarmScheduler}, or set directly on the Android AlarmManager
+ * and kept in the {@link SnapAlarmRegistry}.
+ */
+final class SnapAlarm {
+
+    /**
+     * Orders the alarms by trigger time. Alarms with the same trigger time keep the order they were set in.
+     */
+    static final Comparator<SnapAlarm> ORDER = new Comparator<SnapAlarm>() {
+        @Override
+        public int compare(SnapAlarm a, SnapAlarm b) {
+            if (a.triggerAtMillis != b.triggerAtMillis) {
+                return a.triggerAtMillis < b.triggerAtMillis ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    final String key;
+    final int type;
+    final int requestCode;
+    final long triggerAtMillis;
+    final boolean forked;
+    final Intent intent;
+    private final long sequence;
+
+    /**
+     * @param type The {@link SnapAlarmManager.AlarmType}.
+     * @param requestCode The request code of this alarm.
+     * @param triggerAtMillis When it should fire, in the clock of its type.
+     * @param forked True if it should start the Snap Service on the other process.
+     * @param intent The Snap Intent to deliver.
+     */
+    SnapAlarm(int type, int requestCode, long triggerAtMillis, boolean forked, Intent intent) {
+        this.key = key(forked, requestCode, intent.getAction());
+        this.type = type;
+        this.requestCode = requestCode;
+        this.triggerAtMillis = triggerAtMillis;
+        this.forked = forked;
+        this.intent = intent;
+        this.sequence = sSequence.getAndIncrement();
+    }
+
+    /**
+     * Builds the key that identifies an alarm. Setting another alarm with the same key replaces it.
+     * Like the PendingIntent of a regular alarm, it's made of the process it targets, the request code and
+     * the intent action.
+     */
+    static String key(boolean forked, int requestCode, String action) {
+        return (forked ? "forked|" : "main|") + requestCode + "|" + action;
+    }
+
+    /**
+     * @param className The class name of the Snap Service, or null to match any.
+     * @param action The intent action, or null to match any.
+     * @return True if this alarm starts that Snap Service with that action.
+     */
+    boolean matches(String className, String action) {
+        if (className != null && (intent.getComponent() == null
+                || !className.equals(intent.getComponent().getClassName()))) {
+            return false;
+        }
+        return action == null || action.equals(intent.getAction());
+    }
+
+    @Override
+    public String toString() {
+        return "SnapAlarm[key=" + key + ";type=" + type + ";triggerAt=" + triggerAtMillis + "]";
+    }
+}
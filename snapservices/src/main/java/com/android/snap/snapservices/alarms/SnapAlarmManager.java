@@ -4,10 +4,17 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.SnapServicesContext;
+import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.metrics.SnapMetrics;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.List;
 
 /**
  * This class controls the alarms to launch Snap Services.
@@ -21,9 +28,24 @@ import java.lang.annotation.RetentionPolicy;
  *
  * <p>Note that, you're the one controlling where each Snap Service runs so you need to explicitly
  * decide where to set, verify and cancel the alarm (if in the normal process or on the separate process).</p>
+ *
+ * <p>With {@link com.android.snap.snapservices.configuration.SnapConfigOptions.Builder#setCoalesceAlarms(boolean)},
+ * the alarms are kept by the {@link SnapAlarmScheduler}, which only sets the earliest one on the Android
+ * AlarmManager and delivers the ones due at the same time together.</p>
+ *
+ * <p>Otherwise, each alarm is set on the Android AlarmManager, and also kept in a local index shared by all
+ * processes. Verifying and cancelling alarms look them up in that index, without asking the system.</p>
  */
 public class SnapAlarmManager {
 
+    /**
+     * Identifies the alarm that fired, so it's removed from the {@link SnapAlarmRegistry}.
+     */
+    static final String EXTRA_ALARM_KEY = "com.android.snap.alarms.extra.ALARM_KEY";
+    static final String EXTRA_ALARM_TRIGGER_AT = "com.android.snap.alarms.extra.ALARM_TRIGGER_AT";
+
+    private static volatile boolean sRestoreOnBoot;
+
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({
             AlarmManager.RTC,
@@ -50,7 +72,13 @@ public class SnapAlarmManager {
      */
     public static void setAlarm(Context context, @AlarmType int alarmType, Intent serviceIntent,
                                 int requestCode, long interval) {
-        internalSetAlarm(context, alarmType, convertSnapIntentToIntent(context, serviceIntent), requestCode, interval);
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null) {
+            scheduler.schedule(alarmType, serviceIntent, requestCode, interval, false);
+            return;
+        }
+
+        internalSetAlarm(context, new SnapAlarm(alarmType, requestCode, interval, false, serviceIntent));
     }
 
     /**
@@ -70,49 +98,57 @@ public class SnapAlarmManager {
      */
     public static void setAlarmOnSeparateProcess(Context context, @AlarmType int alarmType, Intent serviceIntent,
                                 int requestCode, long interval) {
-        Intent realIntent = convertSnapIntentToIntent(context, serviceIntent);
-        realIntent.setClass(context, SnapForkedProxyReceiver.class);
-        internalSetAlarm(context, alarmType, realIntent, requestCode, interval);
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null) {
+            scheduler.schedule(alarmType, serviceIntent, requestCode, interval, true);
+            return;
+        }
+
+        internalSetAlarm(context, new SnapAlarm(alarmType, requestCode, interval, true, serviceIntent));
     }
 
     /**
-     * Verifies if the respective alarm is currently in the Android Alarm Manager.
+     * Verifies if the respective alarm is set and didn't fire yet.
      * Note that verifying if an alarm is set is currently not possible in Android,
-     * this method in fact verifies if the <b>PendingIntent</b> used to create the
-     * alarm exists.
+     * this method in fact looks for the alarm in the alarms set through this manager.
      *
      * @param context The application context.
      * @param serviceIntent The intent used to launch the alarm.
      * @param requestCode The request code set when the alarm was set.
      * @return True if the alarm is already set, false otherwise.
-     * @see PendingIntent#FLAG_NO_CREATE
      */
     public static boolean isAlarmSet(Context context, Intent serviceIntent, int requestCode) {
-        return internalIsAlarmSet(context, convertSnapIntentToIntent(context, serviceIntent), requestCode);
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null) {
+            return scheduler.isScheduled(serviceIntent, requestCode, false);
+        }
+
+        return SnapAlarmRegistry.getDefault(context)
+                .contains(SnapAlarm.key(false, requestCode, serviceIntent.getAction()));
     }
 
     /**
-     * Verifies if the respective alarm is currently in the Android Alarm Manager.
+     * Verifies if the respective alarm is set and didn't fire yet.
      * Note that verifying if an alarm is set is currently not possible in Android,
-     * this method in fact verifies if the <b>PendingIntent</b> used to create the
-     * alarm exists.
+     * this method in fact looks for the alarm in the alarms set through this manager.
      *
      * @param context The application context.
      * @param serviceIntent The intent used to launch the alarm.
      * @param requestCode The request code set when the alarm was set.
      * @return True if the alarm is already set, false otherwise.
-     * @see PendingIntent#FLAG_NO_CREATE
      */
     public static boolean isAlarmSetOnSeparateProcess(Context context, Intent serviceIntent, int requestCode) {
-        Intent realIntent = convertSnapIntentToIntent(context, serviceIntent);
-        realIntent.setClass(context, SnapForkedProxyReceiver.class);
-        return internalIsAlarmSet(context, realIntent, requestCode);
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null) {
+            return scheduler.isScheduled(serviceIntent, requestCode, true);
+        }
+
+        return SnapAlarmRegistry.getDefault(context)
+                .contains(SnapAlarm.key(true, requestCode, serviceIntent.getAction()));
     }
 
     /**
-     * Cancels an alarm. It also cancels the PendingIntent used to set the alarm, because
-     * this way later on we can verify whether the alarm is set or not by verifying if the
-     * PendingIntent exists or not.
+     * Cancels an alarm, if it's set.
      *
      * @param context The application context.
      * @param serviceIntent The intent used to launch the alarm.
@@ -123,14 +159,11 @@ public class SnapAlarmManager {
             return;
         }
 
-        Intent realIntent = convertSnapIntentToIntent(context, serviceIntent);
-        internalCancelAlarm(context, realIntent, requestCode);
+        cancelAlarm(context, serviceIntent, requestCode, false);
     }
 
     /**
-     * Cancels an alarm. It also cancels the PendingIntent used to set the alarm, because
-     * this way later on we can verify whether the alarm is set or not by verifying if the
-     * PendingIntent exists or not.
+     * Cancels an alarm set on the separate process, if it's set.
      *
      * @param context The application context.
      * @param serviceIntent The intent used to launch the alarm.
@@ -141,44 +174,182 @@ public class SnapAlarmManager {
             return;
         }
 
-        Intent realIntent = convertSnapIntentToIntent(context, serviceIntent);
-        realIntent.setClass(context, SnapForkedProxyReceiver.class);
-        internalCancelAlarm(context, realIntent, requestCode);
+        cancelAlarm(context, serviceIntent, requestCode, true);
     }
 
-    private static void internalSetAlarm(Context context, @AlarmType int alarmType, Intent serviceIntent,
-                                         int requestCode, long interval) {
-        PendingIntent s = PendingIntent.getBroadcast(context, requestCode, serviceIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmManager.set(alarmType, interval, s);
+    private static void cancelAlarm(Context context, Intent serviceIntent, int requestCode, boolean forked) {
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null && scheduler.cancel(serviceIntent, requestCode, forked)) {
+            return;
+        }
+
+        SnapAlarm alarm = SnapAlarmRegistry.getDefault(context)
+                .remove(SnapAlarm.key(forked, requestCode, serviceIntent.getAction()));
+        if (alarm == null) {
+            // set before the alarms were registered (or coalesced), or its registration was lost. Its PendingIntent
+            // doesn't depend on the type nor the trigger time, so it's cancelled all the same.
+            alarm = new SnapAlarm(AlarmManager.RTC, requestCode, 0, forked, serviceIntent);
+        }
+        internalCancelAlarm(context, alarm);
     }
 
     /**
-     * Internal method that checks if an alarm is set.
+     * Cancels all the alarms set for a Snap Service, on any process.
      *
-     * @param serviceIntent The intent used to launch the alarm.
-     * @param requestCode The request code set when the alarm was set.
-     * @return True if the alarm is already set, false otherwise.
-     * @see PendingIntent#FLAG_NO_CREATE
+     * @param context The application context.
+     * @param serviceClass The class of the Snap Service.
+     * @return How many alarms were cancelled.
      */
-    private static boolean internalIsAlarmSet(Context context, Intent serviceIntent, int requestCode) {
-        return PendingIntent.getBroadcast(context, requestCode,
-                serviceIntent, PendingIntent.FLAG_NO_CREATE) != null;
+    public static int cancelAlarmsForService(Context context, Class<?> serviceClass) {
+        if (serviceClass == null) {
+            return 0;
+        }
+
+        return cancelMatchingAlarms(context, serviceClass.getName(), null);
     }
 
     /**
-     * Internal method that cancels an alarm.
+     * Cancels all the alarms set with an intent action, for any Snap Service and on any process.
      *
      * @param context The application context.
-     * @param serviceIntent The intent used to launch the alarm.
-     * @param requestCode The request code set when the alarm was set.
+     * @param action The action of the intents used to launch the alarms.
+     * @return How many alarms were cancelled.
      */
-    private static void internalCancelAlarm(Context context, Intent serviceIntent, int requestCode) {
+    public static int cancelAlarmsWithAction(Context context, String action) {
+        if (action == null) {
+            return 0;
+        }
+
+        return cancelMatchingAlarms(context, null, action);
+    }
+
+    private static int cancelMatchingAlarms(Context context, String className, String action) {
+        int cancelled = 0;
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null) {
+            cancelled += scheduler.cancelMatching(className, action);
+        }
+
+        List<SnapAlarm> alarms = SnapAlarmRegistry.getDefault(context).removeMatching(className, action);
+        for (SnapAlarm alarm : alarms) {
+            internalCancelAlarm(context, alarm);
+        }
+        return cancelled + alarms.size();
+    }
+
+    /**
+     * Tells if the alarms are set again after a reboot or an app update, by the {@link SnapAlarmRestoreReceiver}.
+     *
+     * @param restore True if they are.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void setRestoreOnBoot(boolean restore) {
+        sRestoreOnBoot = restore;
+    }
+
+    static boolean isRestoreOnBoot() {
+        return sRestoreOnBoot;
+    }
+
+    /**
+     * Loads, in the background, the alarms set on the Android AlarmManager, so looking them up (ex:
+     * {@link #isAlarmSet(Context, Intent, int)}) doesn't read them on the caller thread.
+     * {@link #setRestoreOnBoot(boolean)} must be called first.
+     *
+     * @param context The application context.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void preloadAlarms(Context context) {
+        SnapAlarmRegistry.preload(context);
+    }
+
+    /**
+     * Sets all the alarms again, in a single pass, after they were lost by a reboot or an app update.
+     *
+     * @param context The application context.
+     */
+    static void restoreAlarms(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        List<SnapAlarm> alarms = SnapAlarmRegistry.getDefault(context).restore();
+        for (SnapAlarm alarm : alarms) {
+            armAlarm(context, alarm);
+        }
+
+        int restored = alarms.size();
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler != null) {
+            restored += scheduler.restore();
+        }
+
+        long duration = SystemClock.elapsedRealtime() - start;
+        SnapMetrics.onAlarmsRestored(restored, duration);
+        SnapLogger.d("Restored " + restored + " Snap alarms in " + duration + "ms");
+    }
+
+    /**
+     * Called by the proxy receivers when an alarm set by this manager fires, so it's no longer reported as set.
+     *
+     * @param context The application context.
+     * @param intent The intent received.
+     */
+    static void onAlarmFired(Context context, Intent intent) {
+        String alarmKey = intent.getStringExtra(EXTRA_ALARM_KEY);
+        if (alarmKey == null) return;
+
+        SnapAlarmRegistry.getDefault(context).removeFired(alarmKey, intent.getLongExtra(EXTRA_ALARM_TRIGGER_AT, -1));
+    }
+
+    private static void internalSetAlarm(Context context, SnapAlarm alarm) {
+        armAlarm(context, alarm);
+        SnapAlarmRegistry.getDefault(context).put(alarm);
+    }
+
+    /**
+     * Sets the alarm on the Android AlarmManager.
+     */
+    private static void armAlarm(Context context, SnapAlarm alarm) {
+        Intent realIntent = toProxyIntent(context, alarm);
+        // extras don't change which PendingIntent is used, so these don't change which alarm is replaced.
+        realIntent.putExtra(EXTRA_ALARM_KEY, alarm.key);
+        realIntent.putExtra(EXTRA_ALARM_TRIGGER_AT, alarm.triggerAtMillis);
+        PendingIntent s = PendingIntent.getBroadcast(context, alarm.requestCode, realIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(alarm.type, alarm.triggerAtMillis, s);
+    }
+
+    /**
+     * Internal method that cancels an alarm. It also cancels the PendingIntent used to set the alarm.
+     *
+     * @param context The application context.
+     * @param alarm The alarm to cancel.
+     */
+    private static void internalCancelAlarm(Context context, SnapAlarm alarm) {
+        Intent realIntent = toProxyIntent(context, alarm);
         PendingIntent serviceScheduled = PendingIntent.getBroadcast(context,
-                requestCode, serviceIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+                alarm.requestCode, realIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         alarmManager.cancel(serviceScheduled);
         serviceScheduled.cancel();
+
+        if (alarm.forked && !SnapForkedProxyReceiver.class.getName().equals(realIntent.getComponent().getClassName())) {
+            // it may have been set when every forked alarm went to the first forked process.
+            realIntent.setClass(context, SnapForkedProxyReceiver.class);
+            PendingIntent legacyScheduled = PendingIntent.getBroadcast(context,
+                    alarm.requestCode, realIntent, PendingIntent.FLAG_NO_CREATE);
+            if (legacyScheduled != null) {
+                alarmManager.cancel(legacyScheduled);
+                legacyScheduled.cancel();
+            }
+        }
+    }
+
+    private static Intent toProxyIntent(Context context, SnapAlarm alarm) {
+        Intent realIntent = convertSnapIntentToIntent(context, alarm.intent);
+        if (alarm.forked) {
+            // straight to the forked process the Snap Service runs on.
+            realIntent.setClass(context, SnapServicesContext.getForkedProxyReceiver(alarm.intent));
+        }
+        return realIntent;
     }
 
     /**
@@ -0,0 +1,26 @@
+package com.android.snap.snapservices.alarms;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+/**
+ * Receives the Android alarms set by the {@link SnapAlarmScheduler} and delivers the Snap alarms that are due.
+ */
+public class SnapAlarmReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent == null || !SnapAlarmScheduler.ACTION_DISPATCH_ALARMS.equals(intent.getAction())) return;
+
+        SnapAlarmScheduler scheduler = SnapAlarmScheduler.getDefault();
+        if (scheduler == null) {
+            SnapLogger.w("Snap alarm fired but the scheduler isn't running. Is it still enabled?");
+            return;
+        }
+
+        scheduler.dispatchDueAlarms(intent.getIntExtra(SnapAlarmScheduler.EXTRA_ALARM_TYPE, -1));
+    }
+}
@@ -0,0 +1,240 @@
+package com.android.snap.snapservices.alarms;
+
+import android.content.Context;
+
+import com.android.snap.snapservices.scheduler.SnapBackgroundExecutor;
+
+import java.io.File;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the Snap alarms set directly on the Android AlarmManager, so checking whether an alarm is set, or
+ * finding the ones to cancel, doesn't have to ask the system about their PendingIntents.
+ *
+ * <p>The index is persisted and shared by all the processes of the app. Changes are applied in memory right away
+ * and written on the {@link SnapBackgroundExecutor}, while holding the store lock: a burst of changes is written
+ * together, and only the changes are logged (see {@link SnapAlarmStore}). The alarms are first loaded in the
+ * background (see {@link #preload(Context)}). Lookups reload them only when another process changed them,
+ * keeping the changes not written yet on top.</p>
+ *
+ * <p>The Android alarms don't survive a reboot. Unless they're restored (see {@link SnapAlarmRestoreReceiver}),
+ * the alarms saved before the device rebooted are dropped.</p>
+ */
+final class SnapAlarmRegistry {
+
+    private static final String STORE_FILE_NAME = "snap_alarm_registry";
+
+    private static SnapAlarmRegistry sInstance;
+
+    private final SnapAlarmStore mStore;
+    private final Map<String, SnapAlarm> mAlarms = new HashMap<>();
+    /**
+     * Alarms registered, and keys of the alarms unregistered, not written yet. A key is never in both.
+     */
+    private final Map<String, SnapAlarm> mPendingPuts = new LinkedHashMap<>();
+    private final Set<String> mPendingRemovals = new LinkedHashSet<>();
+    private boolean mWriteScheduled;
+    /**
+     * Modification stamp of the store when the alarms were last loaded or written by this process.
+     */
+    private long mLoadedStamp = Long.MIN_VALUE;
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    private SnapAlarmRegistry(Context context, File file) {
+        this.mStore = new SnapAlarmStore(context, file);
+    }
+
+    /**
+     * Loads the registered alarms on the {@link SnapBackgroundExecutor}, so the first lookup doesn't read them
+     * on the caller thread.
+     *
+     * @param context The application context.
+     */
+    static void preload(Context context) {
+        final SnapAlarmRegistry registry = getDefault(context);
+        SnapBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (registry) {
+                    registry.reload(false);
+                }
+            }
+        });
+    }
+
+    static synchronized SnapAlarmRegistry getDefault(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new SnapAlarmRegistry(appContext, new File(appContext.getFilesDir(), STORE_FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers an alarm, replacing the one with the same key.
+     */
+    synchronized void put(SnapAlarm alarm) {
+        reload(false);
+        mAlarms.put(alarm.key, alarm);
+        mPendingRemovals.remove(alarm.key);
+        mPendingPuts.put(alarm.key, alarm);
+        scheduleWrite();
+    }
+
+    /**
+     * @return True if there's an alarm registered with this key.
+     */
+    synchronized boolean contains(String key) {
+        reload(false);
+        return mAlarms.containsKey(key);
+    }
+
+    /**
+     * Unregisters the alarm with this key.
+     *
+     * @return The alarm, or null if there was none.
+     */
+    synchronized SnapAlarm remove(String key) {
+        reload(false);
+        SnapAlarm alarm = mAlarms.remove(key);
+        if (alarm == null) return null;
+
+        mPendingPuts.remove(key);
+        mPendingRemovals.add(key);
+        scheduleWrite();
+        return alarm;
+    }
+
+    /**
+     * Takes the registered alarms to be set again on the Android AlarmManager, after a reboot or an app update.
+     * The ones saved before a reboot are saved again, with their elapsed realtime moved to this boot.
+     *
+     * @return All the registered alarms.
+     */
+    List<SnapAlarm> restore() {
+        FileLock lock = mStore.lock();
+        try {
+            synchronized (this) {
+                reload(true);
+                save();
+                return new ArrayList<>(mAlarms.values());
+            }
+        } finally {
+            mStore.unlock(lock);
+        }
+    }
+
+    /**
+     * Unregisters an alarm that fired, unless it was set again in the meantime.
+     *
+     * @param key The key of the alarm.
+     * @param triggerAtMillis When the alarm that fired was set to.
+     */
+    synchronized void removeFired(String key, long triggerAtMillis) {
+        reload(false);
+        SnapAlarm alarm = mAlarms.get(key);
+        if (alarm == null || alarm.triggerAtMillis != triggerAtMillis) return;
+
+        remove(key);
+    }
+
+    /**
+     * Unregisters all the alarms of a Snap Service and/or with an action.
+     *
+     * @param className The class name of the Snap Service, or null for any.
+     * @param action The intent action, or null for any.
+     * @return The alarms that were unregistered.
+     */
+    synchronized List<SnapAlarm> removeMatching(String className, String action) {
+        reload(false);
+        List<SnapAlarm> removed = new ArrayList<>();
+        for (SnapAlarm alarm : new ArrayList<>(mAlarms.values())) {
+            if (alarm.matches(className, action)) {
+                remove(alarm.key);
+                removed.add(alarm);
+            }
+        }
+        return removed;
+    }
+
+    private void scheduleWrite() {
+        if (mWriteScheduled) return;
+
+        mWriteScheduled = true;
+        SnapBackgroundExecutor.execute(mWrite);
+    }
+
+    /**
+     * Writes the pending changes, on top of the latest persisted alarms. The store lock is taken before this
+     * registry lock, so lookups don't wait for other processes.
+     */
+    private void writePending() {
+        FileLock lock = mStore.lock();
+        try {
+            synchronized (this) {
+                mWriteScheduled = false;
+                if (mPendingPuts.isEmpty() && mPendingRemovals.isEmpty()) return;
+
+                reload(false);
+                if (mStore.needsCompaction()) {
+                    save();
+                } else {
+                    mStore.log(mPendingPuts.values(), mPendingRemovals);
+                    mPendingPuts.clear();
+                    mPendingRemovals.clear();
+                    mLoadedStamp = mStore.getModificationStamp();
+                }
+            }
+        } finally {
+            mStore.unlock(lock);
+        }
+    }
+
+    /**
+     * Loads the persisted alarms, if they changed since they were last loaded, with the pending changes on top.
+     *
+     * @param force True to load them anyway.
+     */
+    private void reload(boolean force) {
+        long stamp = mStore.getModificationStamp();
+        if (!force && stamp == mLoadedStamp) return;
+
+        mAlarms.clear();
+        List<SnapAlarm> alarms = mStore.load();
+        mLoadedStamp = stamp;
+        if (!mStore.isFromPreviousBoot() || SnapAlarmManager.isRestoreOnBoot()) {
+            // otherwise, the Android alarms didn't survive the reboot, and won't be restored.
+            for (SnapAlarm alarm : alarms) {
+                mAlarms.put(alarm.key, alarm);
+            }
+        }
+
+        mAlarms.putAll(mPendingPuts);
+        for (String key : mPendingRemovals) {
+            mAlarms.remove(key);
+        }
+    }
+
+    /**
+     * Saves all the alarms, pending changes included. The caller must hold the store lock.
+     */
+    private void save() {
+        mStore.save(mAlarms.values());
+        mPendingPuts.clear();
+        mPendingRemovals.clear();
+        mLoadedStamp = mStore.getModificationStamp();
+    }
+}
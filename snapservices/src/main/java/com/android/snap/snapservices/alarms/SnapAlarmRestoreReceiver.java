@@ -0,0 +1,49 @@
+package com.android.snap.snapservices.alarms;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.android.snap.snapservices.SnapServicesContext;
+import com.android.snap.snapservices.logger.SnapLogger;
+
+/**
+ * Sets the Snap alarms again after the device reboots or the app is updated, as the Android alarms don't
+ * survive either.
+ *
+ * <p>It's disabled by default, so the app isn't started on every boot. It's enabled by
+ * {@link com.android.snap.snapservices.configuration.SnapConfigOptions.Builder#setRestoreAlarmsOnBoot(boolean)}.</p>
+ */
+public class SnapAlarmRestoreReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent == null) return;
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())
+                && !Intent.ACTION_MY_PACKAGE_REPLACED.equals(intent.getAction())) return;
+
+        if (!SnapServicesContext.isRunning()) {
+            SnapLogger.w("Can't restore the Snap alarms before the Snap Services are started up.");
+            return;
+        }
+
+        if (!SnapAlarmManager.isRestoreOnBoot()) {
+            SnapLogger.v("Restoring the Snap alarms is disabled.");
+            return;
+        }
+
+        // restoring many alarms takes a while. Keep it off the main thread.
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SnapAlarmManager.restoreAlarms(appContext);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, "SnapAlarmRestore").start();
+    }
+}
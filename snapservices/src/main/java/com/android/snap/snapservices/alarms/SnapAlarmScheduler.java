@@ -0,0 +1,309 @@
+package com.android.snap.snapservices.alarms;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.SnapServicesContext;
+import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.scheduler.SnapBackgroundExecutor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps all the Snap alarms in this process, ordered by trigger time, and only sets a single Android alarm
+ * per {@link SnapAlarmManager.AlarmType}: the earliest one.
+ *
+ * <p>When that alarm fires, every Snap alarm of that type that is due (or due within the tolerance window)
+ * is delivered at once, and the next earliest one is set. This way, lots of Snap alarms don't result in
+ * lots of Android alarms, each one waking the device up.</p>
+ *
+ * <p>The alarms are persisted in a {@link SnapAlarmStore}, so they're not lost when the process dies. They're
+ * loaded, and each change is logged, on the {@link SnapBackgroundExecutor}. Using the scheduler before they're
+ * loaded loads them right away.</p>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SnapAlarmScheduler {
+
+    static final String ACTION_DISPATCH_ALARMS = "com.android.snap.alarms.action.DISPATCH_ALARMS";
+    static final String EXTRA_ALARM_TYPE = "com.android.snap.alarms.extra.ALARM_TYPE";
+
+    private static final String STORE_FILE_NAME = "snap_alarms";
+    private static final int ALARM_TYPE_COUNT = 4;
+
+    private static volatile SnapAlarmScheduler sInstance;
+
+    private final Context context;
+    private final long toleranceWindow;
+    private final SnapAlarmStore mStore;
+    private final Map<String, SnapAlarm> mAlarms = new HashMap<>();
+    private final List<TreeSet<SnapAlarm>> mAlarmsByType = new ArrayList<>(ALARM_TYPE_COUNT);
+    /**
+     * Trigger time of the Android alarm currently set for each type, or -1 if there's none.
+     */
+    private final long[] mArmedTimes = new long[ALARM_TYPE_COUNT];
+    private boolean mLoaded;
+
+    private SnapAlarmScheduler(Context context, long toleranceWindow) {
+        this.context = context;
+        this.toleranceWindow = toleranceWindow;
+        this.mStore = new SnapAlarmStore(context, new File(context.getFilesDir(), STORE_FILE_NAME));
+        for (int type = 0; type < ALARM_TYPE_COUNT; type++) {
+            mAlarmsByType.add(new TreeSet<>(SnapAlarm.ORDER));
+            mArmedTimes[type] = -1;
+        }
+    }
+
+    /**
+     * Starts the scheduler. The persisted alarms are loaded in the background.
+     *
+     * @param context The application context.
+     * @param toleranceWindow How long, in milliseconds, an alarm may be delivered earlier, together with others.
+     */
+    public static synchronized void startup(Context context, long toleranceWindow) {
+        if (sInstance != null) return;
+
+        final SnapAlarmScheduler scheduler = new SnapAlarmScheduler(context, toleranceWindow);
+        sInstance = scheduler;
+        SnapBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.ensureLoaded();
+            }
+        });
+    }
+
+    /**
+     * @return The scheduler, or null if Snap alarms are set directly on the Android AlarmManager.
+     */
+    static SnapAlarmScheduler getDefault() {
+        return sInstance;
+    }
+
+    /**
+     * Loads the persisted alarms, unless they're already loaded.
+     */
+    private synchronized void ensureLoaded() {
+        if (mLoaded) return;
+
+        mLoaded = true;
+        for (SnapAlarm alarm : mStore.load()) {
+            if (alarm.type < 0 || alarm.type >= ALARM_TYPE_COUNT) continue;
+            mAlarms.put(alarm.key, alarm);
+            mAlarmsByType.get(alarm.type).add(alarm);
+        }
+        SnapLogger.v("Loaded " + mAlarms.size() + " Snap alarms.");
+
+        for (int type = 0; type < ALARM_TYPE_COUNT; type++) {
+            // the Android alarms may have been lost (ex: force stop). Always set them again.
+            arm(type);
+        }
+    }
+
+    /**
+     * Sets the Android alarms again, as they're lost on reboots and app updates.
+     *
+     * @return How many Snap alarms are scheduled.
+     */
+    synchronized int restore() {
+        ensureLoaded();
+        for (int type = 0; type < ALARM_TYPE_COUNT; type++) {
+            mArmedTimes[type] = -1;
+            arm(type);
+        }
+        return mAlarms.size();
+    }
+
+    /**
+     * Schedules a Snap Intent. It replaces the alarm with the same request code and action, if any.
+     *
+     * @param alarmType The {@link SnapAlarmManager.AlarmType}.
+     * @param serviceIntent The Snap Intent to deliver.
+     * @param requestCode The request code of this alarm.
+     * @param triggerAtMillis When it should be delivered, in the clock of its type.
+     * @param forked True if it should start the Snap Service on the other process.
+     */
+    synchronized void schedule(int alarmType, Intent serviceIntent, int requestCode, long triggerAtMillis,
+                               boolean forked) {
+        ensureLoaded();
+        SnapAlarm alarm = new SnapAlarm(alarmType, requestCode, triggerAtMillis, forked, serviceIntent);
+        removeLocked(alarm.key);
+        mAlarms.put(alarm.key, alarm);
+        mAlarmsByType.get(alarmType).add(alarm);
+
+        persist(Collections.singletonList(alarm), Collections.<String>emptyList());
+        arm(alarmType);
+    }
+
+    /**
+     * @return True if there's an alarm with this request code and action.
+     */
+    synchronized boolean isScheduled(Intent serviceIntent, int requestCode, boolean forked) {
+        ensureLoaded();
+        return mAlarms.containsKey(SnapAlarm.key(forked, requestCode, serviceIntent.getAction()));
+    }
+
+    /**
+     * Cancels the alarm with this request code and action, if any.
+     *
+     * @return True if it was scheduled here.
+     */
+    synchronized boolean cancel(Intent serviceIntent, int requestCode, boolean forked) {
+        ensureLoaded();
+        SnapAlarm alarm = removeLocked(SnapAlarm.key(forked, requestCode, serviceIntent.getAction()));
+        if (alarm == null) return false;
+
+        persist(Collections.<SnapAlarm>emptyList(), Collections.singletonList(alarm.key));
+        arm(alarm.type);
+        return true;
+    }
+
+    /**
+     * Cancels all the alarms of a Snap Service and/or with an action.
+     *
+     * @param className The class name of the Snap Service, or null for any.
+     * @param action The intent action, or null for any.
+     * @return How many alarms were cancelled.
+     */
+    synchronized int cancelMatching(String className, String action) {
+        ensureLoaded();
+        boolean[] changedTypes = new boolean[ALARM_TYPE_COUNT];
+        List<String> cancelledKeys = new ArrayList<>();
+        for (SnapAlarm alarm : new ArrayList<>(mAlarms.values())) {
+            if (!alarm.matches(className, action)) continue;
+
+            removeLocked(alarm.key);
+            changedTypes[alarm.type] = true;
+            cancelledKeys.add(alarm.key);
+        }
+        if (cancelledKeys.isEmpty()) return 0;
+
+        persist(Collections.<SnapAlarm>emptyList(), cancelledKeys);
+        for (int type = 0; type < ALARM_TYPE_COUNT; type++) {
+            if (changedTypes[type]) {
+                arm(type);
+            }
+        }
+        return cancelledKeys.size();
+    }
+
+    /**
+     * Delivers all the due alarms of the supplied type and sets the Android alarm for the next one.
+     *
+     * @param alarmType The type of the Android alarm that fired.
+     */
+    void dispatchDueAlarms(int alarmType) {
+        if (alarmType < 0 || alarmType >= ALARM_TYPE_COUNT) return;
+
+        List<SnapAlarm> dueAlarms = new ArrayList<>();
+        synchronized (this) {
+            ensureLoaded();
+            // the Android alarm fired, so it's no longer set.
+            mArmedTimes[alarmType] = -1;
+            long dueUntil = now(alarmType) + toleranceWindow;
+            TreeSet<SnapAlarm> alarms = mAlarmsByType.get(alarmType);
+            while (!alarms.isEmpty() && alarms.first().triggerAtMillis <= dueUntil) {
+                SnapAlarm alarm = alarms.pollFirst();
+                mAlarms.remove(alarm.key);
+                dueAlarms.add(alarm);
+            }
+
+            if (!dueAlarms.isEmpty()) {
+                List<String> dueKeys = new ArrayList<>(dueAlarms.size());
+                for (SnapAlarm alarm : dueAlarms) {
+                    dueKeys.add(alarm.key);
+                }
+                persist(Collections.<SnapAlarm>emptyList(), dueKeys);
+            }
+            arm(alarmType);
+        }
+
+        SnapLogger.v("Dispatching " + dueAlarms.size() + " due Snap alarms [type=" + alarmType + "]");
+        for (SnapAlarm alarm : dueAlarms) {
+            if (alarm.forked) {
+                SnapServicesContext.startServiceOnOtherProcess(alarm.intent);
+            } else {
+                SnapServicesContext.startService(alarm.intent);
+            }
+        }
+    }
+
+    /**
+     * Persists, in the background, the alarms added or replaced and the ones removed. Only the changes are
+     * written, unless the store asks for all the alarms to be saved again.
+     */
+    private void persist(final List<SnapAlarm> putAlarms, final List<String> removedKeys) {
+        SnapBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mStore.needsCompaction()) {
+                    List<SnapAlarm> alarms;
+                    synchronized (SnapAlarmScheduler.this) {
+                        alarms = new ArrayList<>(mAlarms.values());
+                    }
+                    // it may include later changes. Logging them again after this is harmless.
+                    mStore.save(alarms);
+                    return;
+                }
+
+                mStore.log(putAlarms, removedKeys);
+            }
+        });
+    }
+
+    private SnapAlarm removeLocked(String key) {
+        SnapAlarm alarm = mAlarms.remove(key);
+        if (alarm != null) {
+            mAlarmsByType.get(alarm.type).remove(alarm);
+        }
+        return alarm;
+    }
+
+    /**
+     * Sets the Android alarm of the supplied type for its earliest Snap alarm, unless it's already set for it.
+     * The caller must hold this scheduler lock.
+     */
+    private void arm(int alarmType) {
+        TreeSet<SnapAlarm> alarms = mAlarmsByType.get(alarmType);
+        PendingIntent dispatchIntent = PendingIntent.getBroadcast(context, alarmType, newDispatchIntent(alarmType),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        if (alarms.isEmpty()) {
+            if (mArmedTimes[alarmType] != -1) {
+                alarmManager.cancel(dispatchIntent);
+                mArmedTimes[alarmType] = -1;
+            }
+            return;
+        }
+
+        long triggerAtMillis = alarms.first().triggerAtMillis;
+        if (mArmedTimes[alarmType] == triggerAtMillis) return;
+
+        alarmManager.set(alarmType, triggerAtMillis, dispatchIntent);
+        mArmedTimes[alarmType] = triggerAtMillis;
+    }
+
+    private Intent newDispatchIntent(int alarmType) {
+        Intent intent = new Intent(context, SnapAlarmReceiver.class);
+        intent.setAction(ACTION_DISPATCH_ALARMS);
+        intent.putExtra(EXTRA_ALARM_TYPE, alarmType);
+        return intent;
+    }
+
+    private static long now(int alarmType) {
+        if (alarmType == AlarmManager.RTC || alarmType == AlarmManager.RTC_WAKEUP) {
+            return System.currentTimeMillis();
+        }
+        return SystemClock.elapsedRealtime();
+    }
+}
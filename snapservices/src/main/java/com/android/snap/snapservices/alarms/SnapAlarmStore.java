@@ -0,0 +1,499 @@
+package com.android.snap.snapservices.alarms;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Persists the alarms of the {@link SnapAlarmScheduler} and the {@link SnapAlarmRegistry}, so they survive
+ * the process being killed.
+ *
+ * <p>The intents are stored as {@link Intent#toUri(int)}, so only extras that can be represented in an URI
+ * (primitives, strings and their arrays) are kept.</p>
+ *
+ * <p>The alarms are kept in a snapshot, replaced as a whole by {@link #save(Collection)}, and a log of the changes
+ * made since then, appended by {@link #log(Collection, Collection)}. So a single change doesn't
+ * rewrite every alarm. Once the log grows bigger than the snapshot, {@link #needsCompaction()} asks for the
+ * alarms to be saved as a whole again. The log is tied to the generation of its snapshot, so it's never replayed
+ * on top of a newer one.</p>
+ *
+ * <p>The same store may be changed by several processes. They take turns with {@link #lock()}, and
+ * {@link #getModificationStamp()} tells when another process changed the alarms.</p>
+ *
+ * <p>The store also keeps the boot it was saved on. Alarms set with an elapsed realtime clock are only valid
+ * within the same boot, so if the device rebooted since they were saved, they're moved to the clock of the current
+ * boot when loaded. The boot is identified by the boot count on API 24+, and by the kernel boot id before that, so
+ * wall clock changes aren't taken for reboots. If neither can be read, a reboot is only noticed when the elapsed
+ * realtime went back. Changes are only logged on top of a snapshot of the current boot.</p>
+ */
+final class SnapAlarmStore {
+
+    private static final int VERSION = 1;
+
+    private static final String BOOT_ID_FILE = "/proc/sys/kernel/random/boot_id";
+    private static final String NO_BOOT_ID = "";
+
+    private static final byte LOG_PUT = 1;
+    private static final byte LOG_REMOVE = 2;
+    /**
+     * The log is always allowed to grow this big before it's compacted, however small the snapshot.
+     */
+    private static final long MIN_COMPACTION_BYTES = 16 * 1024;
+    private static final long NO_GENERATION = 0;
+    private static final long INVALID_GENERATION = -1;
+    private static final Random RANDOM = new Random();
+
+    private static volatile String sBootId;
+
+    private final Context context;
+    private final File file;
+    private final File logFile;
+    private final File lockFile;
+    private boolean mFromPreviousBoot;
+    /**
+     * Set once the snapshot and the log are known to be of the current boot. They can't go back to a previous one.
+     */
+    private boolean mCurrentBoot;
+
+    SnapAlarmStore(Context context, File file) {
+        this.context = context.getApplicationContext();
+        this.file = file;
+        this.logFile = new File(file.getPath() + ".log");
+        this.lockFile = new File(file.getPath() + ".lock");
+    }
+
+    /**
+     * Loads the persisted alarms: the snapshot, with the logged changes on top. The ones with an elapsed realtime
+     * clock saved before the device rebooted are moved to the clock of the current boot.
+     *
+     * @return All the persisted alarms, or an empty list if there are none or they can't be read.
+     */
+    List<SnapAlarm> load() {
+        Map<String, SnapAlarm> alarms = new LinkedHashMap<>();
+        mFromPreviousBoot = false;
+        long generation = loadSnapshot(alarms);
+        if (generation != INVALID_GENERATION) {
+            loadLog(alarms, generation);
+        }
+        return new ArrayList<>(alarms.values());
+    }
+
+    /**
+     * @return The generation of the snapshot, or {@link #INVALID_GENERATION} if it couldn't be read, so the logged
+     * changes don't apply to it.
+     */
+    private long loadSnapshot(Map<String, SnapAlarm> alarms) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                SnapLogger.w("Unknown alarm store version. Ignoring it.");
+                return INVALID_GENERATION;
+            }
+
+            long bootTimeShift = readBootTimeShift(in);
+            long generation = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                SnapAlarm alarm = readAlarm(in, bootTimeShift);
+                if (alarm != null) {
+                    alarms.put(alarm.key, alarm);
+                }
+            }
+            return generation;
+        } catch (FileNotFoundException ex) {
+            // nothing persisted yet.
+            return NO_GENERATION;
+        } catch (IOException ex) {
+            SnapLogger.w("Error loading the alarm store. Keeping the alarms loaded so far.", ex);
+            return INVALID_GENERATION;
+        } finally {
+            close(in);
+        }
+    }
+
+    private void loadLog(Map<String, SnapAlarm> alarms, long generation) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            if (in.readInt() != VERSION) {
+                SnapLogger.w("Unknown alarm log version. Ignoring it.");
+                return;
+            }
+
+            long bootTimeShift = readBootTimeShift(in);
+            if (in.readLong() != generation) {
+                // the process died right after saving the snapshot, before clearing the log.
+                SnapLogger.v("Ignoring the alarm log of a previous snapshot.");
+                return;
+            }
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException ex) {
+                    return;
+                }
+
+                if (op == LOG_PUT) {
+                    SnapAlarm alarm = readAlarm(in, bootTimeShift);
+                    if (alarm != null) {
+                        alarms.put(alarm.key, alarm);
+                    }
+                } else if (op == LOG_REMOVE) {
+                    alarms.remove(in.readUTF());
+                } else {
+                    SnapLogger.w("Corrupted alarm log. Keeping the changes loaded so far.");
+                    return;
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            // no changes since the snapshot.
+        } catch (EOFException ex) {
+            // the process died while appending the last change.
+            SnapLogger.v("Dropping the last alarm change, which was left half written.");
+        } catch (IOException ex) {
+            SnapLogger.w("Error loading the alarm log. Keeping the changes loaded so far.", ex);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Reads the boot the alarms were saved on, and flags them as saved before a reboot if it's not this one.
+     *
+     * @return How much the boot time (as wall clock time) moved since a reboot, to move the elapsed realtime alarms
+     * to the clock of this boot. Zero if the device didn't reboot.
+     */
+    private long readBootTimeShift(DataInputStream in) throws IOException {
+        String bootId = in.readUTF();
+        long savedElapsedRealtime = in.readLong();
+        long savedWallTime = in.readLong();
+        if (isSameBoot(bootId, savedElapsedRealtime)) return 0;
+
+        mFromPreviousBoot = true;
+        return savedWallTime - savedElapsedRealtime - getBootTime();
+    }
+
+    /**
+     * @return The alarm, or null if its intent is invalid.
+     */
+    private SnapAlarm readAlarm(DataInputStream in, long bootTimeShift) throws IOException {
+        int requestCode = in.readInt();
+        int type = in.readInt();
+        long triggerAtMillis = in.readLong();
+        boolean forked = in.readBoolean();
+        String intentUri = in.readUTF();
+        try {
+            Intent intent = Intent.parseUri(intentUri, Intent.URI_INTENT_SCHEME);
+            if (bootTimeShift != 0 && (type == AlarmManager.ELAPSED_REALTIME
+                    || type == AlarmManager.ELAPSED_REALTIME_WAKEUP)) {
+                // the same wall clock time, on the clock of this boot. Alarms already due fire right away.
+                triggerAtMillis = Math.max(triggerAtMillis + bootTimeShift, 0);
+            }
+            return new SnapAlarm(type, requestCode, triggerAtMillis, forked, intent);
+        } catch (URISyntaxException ex) {
+            SnapLogger.w("Dropping alarm with an invalid intent [requestCode=" + requestCode + "]", ex);
+            return null;
+        }
+    }
+
+    private static void writeAlarm(DataOutputStream out, SnapAlarm alarm) throws IOException {
+        out.writeInt(alarm.requestCode);
+        out.writeInt(alarm.type);
+        out.writeLong(alarm.triggerAtMillis);
+        out.writeBoolean(alarm.forked);
+        out.writeUTF(alarm.intent.toUri(Intent.URI_INTENT_SCHEME));
+    }
+
+    /**
+     * Replaces the persisted alarms, and clears the logged changes. The file is written aside and then renamed,
+     * so it's never left half written.
+     *
+     * @param alarms All the alarms to persist.
+     */
+    void save(Collection<SnapAlarm> alarms) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            writeHeader(out);
+            out.writeLong(newGeneration());
+            out.writeInt(alarms.size());
+            for (SnapAlarm alarm : alarms) {
+                writeAlarm(out, alarm);
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                SnapLogger.w("Couldn't replace the alarm store [file=" + file + "]");
+                return;
+            }
+            if (logFile.exists() && !logFile.delete()) {
+                SnapLogger.w("Couldn't clear the alarm log [file=" + logFile + "]");
+            }
+            mCurrentBoot = true;
+        } catch (IOException ex) {
+            SnapLogger.w("Error saving the alarm store.", ex);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Logs the alarms added, or replacing the ones with the same key, and the ones removed. The store must not
+     * need a compaction.
+     *
+     * @param putAlarms The alarms added or replaced.
+     * @param removedKeys The keys of the alarms removed.
+     */
+    void log(Collection<SnapAlarm> putAlarms, Collection<String> removedKeys) {
+        DataOutputStream out = openLog();
+        if (out == null) return;
+
+        try {
+            for (SnapAlarm alarm : putAlarms) {
+                out.writeByte(LOG_PUT);
+                writeAlarm(out, alarm);
+            }
+            for (String key : removedKeys) {
+                out.writeByte(LOG_REMOVE);
+                out.writeUTF(key);
+            }
+        } catch (IOException ex) {
+            SnapLogger.w("Error logging the alarm changes [file=" + logFile + "]", ex);
+        } finally {
+            close(out);
+        }
+    }
+
+    private DataOutputStream openLog() {
+        try {
+            boolean created = !logFile.exists();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            if (created) {
+                writeHeader(out);
+                out.writeLong(readGeneration());
+            }
+            return out;
+        } catch (IOException ex) {
+            SnapLogger.w("Error opening the alarm log [file=" + logFile + "]", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the version and the boot this store is saved on, along with both clocks to move the elapsed realtime
+     * alarms after a reboot.
+     */
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeUTF(getBootId());
+        out.writeLong(SystemClock.elapsedRealtime());
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Tells whether changes must be saved with {@link #save(Collection)}, instead of logged: when the alarms were
+     * saved before the device rebooted, or when the log grew bigger than the snapshot.
+     *
+     * @return True if the alarms must be saved as a whole.
+     */
+    boolean needsCompaction() {
+        if (!mCurrentBoot) {
+            mCurrentBoot = isCurrentBoot(file) && isCurrentBoot(logFile);
+            if (!mCurrentBoot) return true;
+        }
+        return logFile.length() > Math.max(file.length(), MIN_COMPACTION_BYTES);
+    }
+
+    /**
+     * @return The generation of the snapshot, or {@link #NO_GENERATION} if there's none yet.
+     */
+    private long readGeneration() throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            in.readInt();
+            in.readUTF();
+            in.readLong();
+            in.readLong();
+            return in.readLong();
+        } catch (FileNotFoundException ex) {
+            return NO_GENERATION;
+        } finally {
+            close(in);
+        }
+    }
+
+    private static long newGeneration() {
+        long generation;
+        do {
+            generation = RANDOM.nextLong();
+        } while (generation == NO_GENERATION || generation == INVALID_GENERATION);
+        return generation;
+    }
+
+    /**
+     * @return True if the file doesn't exist, or was saved on this boot.
+     */
+    private boolean isCurrentBoot(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return in.readInt() == VERSION && isSameBoot(in.readUTF(), in.readLong());
+        } catch (FileNotFoundException ex) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * @return True if the alarms last loaded were saved before the device rebooted.
+     */
+    boolean isFromPreviousBoot() {
+        return mFromPreviousBoot;
+    }
+
+    /**
+     * @param bootId The id of the boot the store was saved on, or {@link #NO_BOOT_ID} if it couldn't be read.
+     * @param savedElapsedRealtime The elapsed realtime the store was saved at.
+     * @return True if the store was saved on this boot. Without boot ids to compare, only if the elapsed realtime
+     * didn't go back since then.
+     */
+    private boolean isSameBoot(String bootId, long savedElapsedRealtime) {
+        String currentBootId = getBootId();
+        if (!NO_BOOT_ID.equals(bootId) && !NO_BOOT_ID.equals(currentBootId)) {
+            return bootId.equals(currentBootId);
+        }
+        return savedElapsedRealtime <= SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return An id of the current boot, or {@link #NO_BOOT_ID} if it can't be read. It doesn't change for as long
+     * as the process lives, so it's only read once.
+     */
+    private String getBootId() {
+        String bootId = sBootId;
+        if (bootId == null) {
+            bootId = readBootId();
+            sBootId = bootId;
+        }
+        return bootId;
+    }
+
+    private String readBootId() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                return "count:" + Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT);
+            } catch (Settings.SettingNotFoundException | SecurityException ex) {
+                SnapLogger.v("Couldn't read the boot count. Reading the kernel boot id.", ex);
+            }
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(BOOT_ID_FILE), "UTF-8"));
+            String bootId = reader.readLine();
+            return bootId == null ? NO_BOOT_ID : "id:" + bootId.trim();
+        } catch (IOException | SecurityException ex) {
+            SnapLogger.w("Couldn't read the boot id. Reboots are only noticed when the elapsed realtime goes back.", ex);
+            return NO_BOOT_ID;
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * @return When the device booted, in wall clock time.
+     */
+    private static long getBootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return A value that changes whenever the persisted alarms are changed, by this or any other process: the
+     * generation of the snapshot, new on every {@link #save(Collection)}, along with the length of the log, which
+     * only grows until the next save. Unlike modification times, it can't miss a change made within the same second.
+     */
+    long getModificationStamp() {
+        long generation;
+        try {
+            generation = readGeneration();
+        } catch (IOException ex) {
+            generation = INVALID_GENERATION;
+        }
+        return generation * 31 + logFile.length();
+    }
+
+    /**
+     * Blocks until no other process holds the lock of this store, and takes it.
+     * It must be released with {@link #unlock(FileLock)}.
+     *
+     * @return The lock, or null if it couldn't be taken. In that case, the store is used without it.
+     */
+    FileLock lock() {
+        RandomAccessFile lock = null;
+        try {
+            lock = new RandomAccessFile(lockFile, "rw");
+            return lock.getChannel().lock();
+        } catch (IOException ex) {
+            SnapLogger.w("Couldn't lock the alarm store [file=" + file + "]", ex);
+            close(lock);
+            return null;
+        }
+    }
+
+    void unlock(FileLock lock) {
+        if (lock == null) return;
+
+        try {
+            lock.release();
+        } catch (IOException ex) {
+            SnapLogger.w("Couldn't unlock the alarm store [file=" + file + "]", ex);
+        } finally {
+            close(lock.channel());
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
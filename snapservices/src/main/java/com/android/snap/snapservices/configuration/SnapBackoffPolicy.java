@@ -0,0 +1,96 @@
+package com.android.snap.snapservices.configuration;
+
+import java.util.Random;
+
+/**
+ * Tells how a delay grows each time something is repeated.
+ *
+ * <p>Periodic Snap Services (see
+ * {@link com.android.snap.snapservices.SnapServicesContext#startServicePeriodic(android.content.Intent, long, SnapBackoffPolicy)})
+ * use it to space their runs: the n-th wait is the period multiplied n times by the multiplier, up to the maximum delay.
+ * This is meant for polling that should slow down over time, instead of waking up at the same pace forever.</p>
+ *
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * // 1s, 2s, 4s, 8s, ... up to 5 minutes between runs, each one up to 10% earlier or later
+ * SnapBackoffPolicy.exponential(2, 5 * 60 * 1000).withJitter(0.1f);
+ * }
+ * </pre>
+ */
+public final class SnapBackoffPolicy {
+
+    private static final Random sRandom = new Random();
+
+    private final double multiplier;
+    private final long maxDelay;
+    private final float jitter;
+
+    private SnapBackoffPolicy(double multiplier, long maxDelay, float jitter) {
+        this.multiplier = multiplier;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+    }
+
+    /**
+     * The delay never grows.
+     *
+     * @return The backoff policy.
+     */
+    public static SnapBackoffPolicy fixed() {
+        return new SnapBackoffPolicy(1, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * The delay is multiplied each time, up to a maximum.
+     *
+     * @param multiplier How much the delay grows each time. Must be at least 1.
+     * @param maxDelayMillis The longest delay, in milliseconds.
+     * @return The backoff policy.
+     */
+    public static SnapBackoffPolicy exponential(double multiplier, long maxDelayMillis) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Backoff multiplier must be at least 1: " + multiplier);
+        }
+        if (maxDelayMillis <= 0) {
+            throw new IllegalArgumentException("Backoff max delay must be positive: " + maxDelayMillis);
+        }
+        return new SnapBackoffPolicy(multiplier, maxDelayMillis, 0);
+    }
+
+    /**
+     * Spreads the delays randomly, so repeated work started at the same time doesn't keep running at the same time.
+     *
+     * @param jitter The fraction of the delay it can be moved, earlier or later. Between 0 and 1.
+     * @return A copy of this backoff policy with the jitter.
+     */
+    public SnapBackoffPolicy withJitter(float jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Backoff jitter must be between 0 and 1: " + jitter);
+        }
+        return new SnapBackoffPolicy(multiplier, maxDelay, jitter);
+    }
+
+    /**
+     * Provides the delay after something was repeated a number of times.
+     *
+     * @param initialDelayMillis The first delay, in milliseconds.
+     * @param attempt How many times it was already repeated. 0 for the first delay.
+     * @return The delay, in milliseconds.
+     */
+    public long getDelay(long initialDelayMillis, int attempt) {
+        double delay = initialDelayMillis * Math.pow(multiplier, attempt);
+        if (delay > maxDelay) {
+            delay = Math.max(maxDelay, initialDelayMillis);
+        }
+
+        if (jitter > 0) {
+            double random;
+            synchronized (sRandom) {
+                random = sRandom.nextDouble();
+            }
+            delay += delay * jitter * (random * 2 - 1);
+        }
+        return (long) delay;
+    }
+}
@@ -0,0 +1,98 @@
+package com.android.snap.snapservices.configuration;
+
+import android.content.Intent;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Tells how the requests to a Snap Service can be coalesced.
+ *
+ * <p>When a Snap Service is started with an intent that has the same coalescing key as a request that is
+ * still waiting in its queue, no new request is queued. Instead, the waiting request is updated with the new
+ * intent (see {@link #MODE_REPLACE} and {@link #MODE_MERGE}). The waiting request keeps its place in the queue.</p>
+ *
+ * <p>This is meant for services started many times per second, where only the latest request matters
+ * (ex: "refresh X"). Requests that already started running are never changed.</p>
+ *
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * new SnapConfigOptions.Builder()
+ *      .setCoalescingPolicy(RefreshService.class, SnapCoalescingPolicy.byAction(SnapCoalescingPolicy.MODE_REPLACE))
+ *      .build();
+ * }
+ * </pre>
+ */
+public final class SnapCoalescingPolicy {
+
+    /**
+     * The waiting request is replaced by the newest intent.
+     */
+    public static final int MODE_REPLACE = 0;
+
+    /**
+     * The extras of the newest intent are added to the waiting request, replacing the ones with the same keys.
+     */
+    public static final int MODE_MERGE = 1;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+            MODE_REPLACE,
+            MODE_MERGE
+    })
+    public @interface CoalescingMode {}
+
+    private final String extraKey;
+    private final int mode;
+
+    private SnapCoalescingPolicy(String extraKey, int mode) {
+        this.extraKey = extraKey;
+        this.mode = mode;
+    }
+
+    /**
+     * Coalesces the requests that have the same action.
+     *
+     * @param mode How the waiting request is updated.
+     * @return The coalescing policy.
+     */
+    public static SnapCoalescingPolicy byAction(@CoalescingMode int mode) {
+        return new SnapCoalescingPolicy(null, mode);
+    }
+
+    /**
+     * Coalesces the requests that have the same value for the given extra. Intents without this extra are never coalesced.
+     *
+     * @param extraKey The key of the extra to compare.
+     * @param mode How the waiting request is updated.
+     * @return The coalescing policy.
+     */
+    public static SnapCoalescingPolicy byExtra(String extraKey, @CoalescingMode int mode) {
+        if (extraKey == null) {
+            throw new IllegalArgumentException("Extra key cannot be null!");
+        }
+        return new SnapCoalescingPolicy(extraKey, mode);
+    }
+
+    @CoalescingMode
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Provides the key used to find a waiting request to coalesce with.
+     *
+     * @param intent The intent being started.
+     * @return The coalescing key, or null if this intent should not be coalesced.
+     */
+    public String getCoalescingKey(Intent intent) {
+        if (extraKey == null) {
+            return intent.getAction();
+        }
+
+        Object value = intent.getExtras() == null ? null : intent.getExtras().get(extraKey);
+        return value == null ? null : String.valueOf(value);
+    }
+}
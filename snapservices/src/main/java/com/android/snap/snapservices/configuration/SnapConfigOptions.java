@@ -2,10 +2,16 @@ package com.android.snap.snapservices.configuration;
 
 import android.support.annotation.IntDef;
 
+import com.android.snap.snapservices.BuildConfig;
+import com.android.snap.snapservices.SnapService;
+import com.android.snap.snapservices.foreground.SnapForegroundNotificationAggregator;
 import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.registry.SnapServiceRegistry;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Class that should be passed when initializing the SnapServicesContext, to tell it how it should behave.
@@ -23,8 +29,118 @@ public class SnapConfigOptions {
     })
     public @interface LogLevel {}
 
+    /**
+     * All the Snap Services housekeeping (creating, routing work and destroying services) runs on the
+     * application main thread. This is the default.
+     */
+    public static final int DISPATCHER_MAIN_THREAD = 0;
+
+    /**
+     * All the Snap Services housekeeping (creating, routing work and destroying services) runs on a
+     * thread owned by this library. The main thread is only used to deliver the
+     * {@link com.android.snap.snapservices.binder.SnapServiceConnection} callbacks.
+     */
+    public static final int DISPATCHER_BACKGROUND_THREAD = 1;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+            DISPATCHER_MAIN_THREAD,
+            DISPATCHER_BACKGROUND_THREAD
+    })
+    public @interface DispatcherMode {}
+
+    /**
+     * By default, a request that has waited for one second is worth one priority level.
+     */
+    public static final long DEFAULT_PRIORITY_AGING_INTERVAL = 1000;
+
+    /**
+     * By default, up to 32 intents forwarded to the other process are sent together.
+     */
+    public static final int DEFAULT_FORWARD_BATCH_SIZE = 32;
+
+    /**
+     * Maximum number of forked processes Snap Services can run on, set at build time by the "forkedProcesses"
+     * property.
+     */
+    public static final int MAX_FORKED_PROCESS_COUNT = BuildConfig.FORKED_PROCESS_SLOTS;
+
+    /**
+     * Each Snap Service always runs on the same forked process, picked by its class name. This keeps
+     * a single instance of each Snap Service. This is the default.
+     */
+    public static final int PLACEMENT_HASH_BY_COMPONENT = 0;
+
+    /**
+     * Each request runs on the forked process with less pending work. The same Snap Service may then be
+     * running on several forked processes at the same time.
+     */
+    public static final int PLACEMENT_LEAST_LOADED = 1;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+            PLACEMENT_HASH_BY_COMPONENT,
+            PLACEMENT_LEAST_LOADED
+    })
+    public @interface PlacementPolicy {}
+
+    /**
+     * Each Snap Service in foreground takes its own foreground service slot, with its own notification.
+     * This is the default.
+     */
+    public static final int FOREGROUND_MODE_SLOTS = 0;
+
+    /**
+     * All the Snap Services in foreground share a single foreground service. It shows the notification of the
+     * first one to join, while the others are shown as regular notifications, or a single aggregated notification
+     * (see {@link Builder#setForegroundNotificationAggregator(SnapForegroundNotificationAggregator)}).
+     */
+    public static final int FOREGROUND_MODE_SHARED_HOST = 1;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+            FOREGROUND_MODE_SLOTS,
+            FOREGROUND_MODE_SHARED_HOST
+    })
+    public @interface ForegroundMode {}
+
+    /**
+     * By default, the notification of a Snap Service in foreground is updated at most once per second.
+     */
+    public static final long DEFAULT_FOREGROUND_UPDATE_INTERVAL = 1000;
+
+    /**
+     * By default, Snap Services delayed for a minute or longer are set on the AlarmManager.
+     */
+    public static final long DEFAULT_TIMER_ALARM_THRESHOLD = 60 * 1000;
+
+    /**
+     * By default, the journal of durable work is flushed to the disk at most every 100 milliseconds.
+     */
+    public static final long DEFAULT_JOURNAL_COMMIT_INTERVAL = 100;
+
     private final boolean killSeparateProcessOnFinish;
     private final int logLevel;
+    private final int dispatcherMode;
+    private final int sharedWorkerPoolSize;
+    private final long priorityAgingInterval;
+    private final Map<String, SnapCoalescingPolicy> coalescingPolicies;
+    private final SnapServiceRegistry serviceRegistry;
+    private final long serviceIdleTimeout;
+    private final long forwardBatchWindow;
+    private final int forwardBatchSize;
+    private final int forkedProcessCount;
+    private final int placementPolicy;
+    private final long forkedProcessIdleTimeout;
+    private final int foregroundMode;
+    private final SnapForegroundNotificationAggregator foregroundNotificationAggregator;
+    private final long foregroundUpdateInterval;
+    private final boolean coalesceAlarms;
+    private final long alarmToleranceWindow;
+    private final long timerAlarmThreshold;
+    private final boolean durableWork;
+    private final boolean restoreAlarmsOnBoot;
+    private final long journalCommitInterval;
 
     public boolean isKillSeparateProcessOnFinish() {
         return killSeparateProcessOnFinish;
@@ -35,15 +151,148 @@ public class SnapConfigOptions {
         return logLevel;
     }
 
+    @DispatcherMode
+    public int getDispatcherMode() {
+        return dispatcherMode;
+    }
+
+    public int getSharedWorkerPoolSize() {
+        return sharedWorkerPoolSize;
+    }
+
+    public boolean isSharedWorkerPoolEnabled() {
+        return sharedWorkerPoolSize > 0;
+    }
+
+    public long getPriorityAgingInterval() {
+        return priorityAgingInterval;
+    }
+
+    /**
+     * Provides the coalescing policy of a Snap Service.
+     *
+     * @param serviceClassName The class name of the Snap Service.
+     * @return The coalescing policy, or null if the requests of this service are never coalesced.
+     */
+    public SnapCoalescingPolicy getCoalescingPolicy(String serviceClassName) {
+        return coalescingPolicies.get(serviceClassName);
+    }
+
+    public SnapServiceRegistry getServiceRegistry() {
+        return serviceRegistry;
+    }
+
+    public long getServiceIdleTimeout() {
+        return serviceIdleTimeout;
+    }
+
+    public long getForwardBatchWindow() {
+        return forwardBatchWindow;
+    }
+
+    public int getForwardBatchSize() {
+        return forwardBatchSize;
+    }
+
+    public int getForkedProcessCount() {
+        return forkedProcessCount;
+    }
+
+    @PlacementPolicy
+    public int getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    public long getForkedProcessIdleTimeout() {
+        return forkedProcessIdleTimeout;
+    }
+
+    @ForegroundMode
+    public int getForegroundMode() {
+        return foregroundMode;
+    }
+
+    public SnapForegroundNotificationAggregator getForegroundNotificationAggregator() {
+        return foregroundNotificationAggregator;
+    }
+
+    public long getForegroundUpdateInterval() {
+        return foregroundUpdateInterval;
+    }
+
+    public boolean isCoalesceAlarms() {
+        return coalesceAlarms;
+    }
+
+    public long getAlarmToleranceWindow() {
+        return alarmToleranceWindow;
+    }
+
+    public long getTimerAlarmThreshold() {
+        return timerAlarmThreshold;
+    }
+
+    public boolean isDurableWork() {
+        return durableWork;
+    }
+
+    public boolean isRestoreAlarmsOnBoot() {
+        return restoreAlarmsOnBoot;
+    }
+
+    public long getJournalCommitInterval() {
+        return journalCommitInterval;
+    }
+
     private SnapConfigOptions(SnapConfigOptions.Builder builder) {
         this.killSeparateProcessOnFinish = builder.killSeparateProcess;
         this.logLevel = builder.logLevel;
+        this.dispatcherMode = builder.dispatcherMode;
+        this.sharedWorkerPoolSize = builder.sharedWorkerPoolSize;
+        this.priorityAgingInterval = builder.priorityAgingInterval;
+        this.coalescingPolicies = new HashMap<>(builder.coalescingPolicies);
+        this.serviceRegistry = builder.serviceRegistry;
+        this.serviceIdleTimeout = builder.serviceIdleTimeout;
+        this.forwardBatchWindow = builder.forwardBatchWindow;
+        this.forwardBatchSize = builder.forwardBatchSize;
+        this.forkedProcessCount = builder.forkedProcessCount;
+        this.placementPolicy = builder.placementPolicy;
+        this.forkedProcessIdleTimeout = builder.forkedProcessIdleTimeout;
+        this.foregroundMode = builder.foregroundMode;
+        this.foregroundNotificationAggregator = builder.foregroundNotificationAggregator;
+        this.foregroundUpdateInterval = builder.foregroundUpdateInterval;
+        this.coalesceAlarms = builder.coalesceAlarms;
+        this.alarmToleranceWindow = builder.alarmToleranceWindow;
+        this.timerAlarmThreshold = builder.timerAlarmThreshold;
+        this.durableWork = builder.durableWork;
+        this.restoreAlarmsOnBoot = builder.restoreAlarmsOnBoot;
+        this.journalCommitInterval = builder.journalCommitInterval;
     }
 
     public static final class Builder {
 
         private boolean killSeparateProcess = false;
         private int logLevel = SnapLogger.DISABLED;
+        private int dispatcherMode = DISPATCHER_MAIN_THREAD;
+        private int sharedWorkerPoolSize = 0;
+        private long priorityAgingInterval = DEFAULT_PRIORITY_AGING_INTERVAL;
+        private final Map<String, SnapCoalescingPolicy> coalescingPolicies = new HashMap<>();
+        private SnapServiceRegistry serviceRegistry;
+        private long serviceIdleTimeout = 0;
+        private long forwardBatchWindow = 0;
+        private int forwardBatchSize = DEFAULT_FORWARD_BATCH_SIZE;
+        private int forkedProcessCount = 1;
+        private int placementPolicy = PLACEMENT_HASH_BY_COMPONENT;
+        private long forkedProcessIdleTimeout = 0;
+        private int foregroundMode = FOREGROUND_MODE_SLOTS;
+        private SnapForegroundNotificationAggregator foregroundNotificationAggregator;
+        private long foregroundUpdateInterval = DEFAULT_FOREGROUND_UPDATE_INTERVAL;
+        private boolean coalesceAlarms = false;
+        private long alarmToleranceWindow = 0;
+        private long timerAlarmThreshold = DEFAULT_TIMER_ALARM_THRESHOLD;
+        private boolean durableWork = false;
+        private boolean restoreAlarmsOnBoot = false;
+        private long journalCommitInterval = DEFAULT_JOURNAL_COMMIT_INTERVAL;
 
         public Builder() {
 
@@ -59,6 +308,301 @@ public class SnapConfigOptions {
             return this;
         }
 
+        /**
+         * Defines on which thread the Snap Services lifecycle and routing work runs.
+         *
+         * @param dispatcherMode Either {@link #DISPATCHER_MAIN_THREAD} or {@link #DISPATCHER_BACKGROUND_THREAD}.
+         */
+        public Builder setDispatcherMode(@DispatcherMode int dispatcherMode) {
+            this.dispatcherMode = dispatcherMode;
+            return this;
+        }
+
+        /**
+         * Runs all the Snap Services on one shared pool with, at most, <var>size</var> threads, instead of
+         * creating worker threads for each running service. Each service still handles its intents in
+         * the order they arrive.
+         *
+         * @param size The maximum number of threads of the shared pool. 0 (the default) disables the shared pool.
+         */
+        public Builder setSharedWorkerPoolSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Shared worker pool size can't be negative: " + size);
+            }
+            this.sharedWorkerPoolSize = size;
+            return this;
+        }
+
+        /**
+         * Defines how long a queued request has to wait to go ahead of a request with one priority level above it.
+         * This prevents low priority requests from waiting forever behind a constant flow of high priority ones.
+         *
+         * @param agingIntervalMillis The aging interval, in milliseconds. Defaults to
+         *                            {@link #DEFAULT_PRIORITY_AGING_INTERVAL}. 0 ignores the priorities
+         *                            and handles all requests in the order they arrive.
+         */
+        public Builder setPriorityAgingInterval(long agingIntervalMillis) {
+            if (agingIntervalMillis < 0) {
+                throw new IllegalArgumentException("Priority aging interval can't be negative: " + agingIntervalMillis);
+            }
+            this.priorityAgingInterval = agingIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Coalesces the requests to the given Snap Service that are still waiting in its queue.
+         *
+         * @param service The Snap Service whose requests should be coalesced.
+         * @param policy How to coalesce the requests, or null to never coalesce them (the default).
+         * @see SnapCoalescingPolicy
+         */
+        public Builder setCoalescingPolicy(Class<? extends SnapService> service, SnapCoalescingPolicy policy) {
+            if (policy == null) {
+                this.coalescingPolicies.remove(service.getName());
+            } else {
+                this.coalescingPolicies.put(service.getName(), policy);
+            }
+            return this;
+        }
+
+        /**
+         * Sets a registry used to create the Snap Services without reflection. It's asked before the registries
+         * generated by the <em>snapservices-compiler</em> annotation processor, which are always used.
+         *
+         * @param serviceRegistry The registry of Snap Services.
+         * @see com.android.snap.snapservices.registry.RegisterSnapService
+         */
+        public Builder setServiceRegistry(SnapServiceRegistry serviceRegistry) {
+            this.serviceRegistry = serviceRegistry;
+            return this;
+        }
+
+        /**
+         * Keeps the Snap Services alive for a while once they have no more work, so that new work arriving
+         * shortly after doesn't need to create them again. Each Snap Service may override this with
+         * {@link SnapService#getIdleTimeout()}.
+         *
+         * @param idleTimeoutMillis How long, in milliseconds, an idle Snap Service stays alive. 0 (the default)
+         *                          destroys it as soon as it has no more work.
+         * @see com.android.snap.snapservices.metrics.SnapMetrics#getIdleServicesReused()
+         */
+        public Builder setServiceIdleTimeout(long idleTimeoutMillis) {
+            if (idleTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Service idle timeout can't be negative: " + idleTimeoutMillis);
+            }
+            this.serviceIdleTimeout = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Intents started on the other process are batched and sent together, to cut the IPC overhead
+         * when lots of them are started in a row. A batch is sent once this window is over or once it
+         * reaches {@link #setForwardBatchSize(int)} intents, whatever comes first.
+         *
+         * @param batchWindowMillis How long, in milliseconds, a forwarded intent may wait for others. 0 (the
+         *                          default) only batches the intents started before the dispatcher is free again.
+         */
+        public Builder setForwardBatchWindow(long batchWindowMillis) {
+            if (batchWindowMillis < 0) {
+                throw new IllegalArgumentException("Forward batch window can't be negative: " + batchWindowMillis);
+            }
+            this.forwardBatchWindow = batchWindowMillis;
+            return this;
+        }
+
+        /**
+         * @param batchSize Maximum number of intents forwarded to the other process together.
+         *                  1 forwards each intent on its own.
+         * @see #setForwardBatchWindow(long)
+         */
+        public Builder setForwardBatchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Forward batch size must be at least 1: " + batchSize);
+            }
+            this.forwardBatchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Snap Services started on the other process can be spread across several forked processes, so heavy
+         * work gets more memory and a crash only takes down the Snap Services on that process.
+         *
+         * @param forkedProcessCount How many forked processes to use, from 1 (the default) to
+         *                           {@link #MAX_FORKED_PROCESS_COUNT}.
+         * @see #setPlacementPolicy(int)
+         */
+        public Builder setForkedProcessCount(int forkedProcessCount) {
+            if (forkedProcessCount < 1 || forkedProcessCount > MAX_FORKED_PROCESS_COUNT) {
+                throw new IllegalArgumentException("Forked process count must be between 1 and "
+                        + MAX_FORKED_PROCESS_COUNT + ": " + forkedProcessCount);
+            }
+            this.forkedProcessCount = forkedProcessCount;
+            return this;
+        }
+
+        /**
+         * Defines on which forked process each request started on the other process runs, when there's more than
+         * one (see {@link #setForkedProcessCount(int)}).
+         *
+         * @param placementPolicy Either {@link #PLACEMENT_HASH_BY_COMPONENT} (the default) or
+         *                        {@link #PLACEMENT_LEAST_LOADED}.
+         */
+        public Builder setPlacementPolicy(@PlacementPolicy int placementPolicy) {
+            this.placementPolicy = placementPolicy;
+            return this;
+        }
+
+        /**
+         * With {@link #killSeparateProcess(boolean)}, keeps the forked process alive for a while once all its
+         * Snap Services are idle, so work started shortly after doesn't pay for a new process start.
+         *
+         * @param idleTimeoutMillis How long, in milliseconds, an idle forked process stays alive. 0 (the default)
+         *                          kills it as soon as it's idle.
+         * @see com.android.snap.snapservices.metrics.SnapMetrics#getColdForwards()
+         */
+        public Builder setForkedProcessIdleTimeout(long idleTimeoutMillis) {
+            if (idleTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Forked process idle timeout can't be negative: " + idleTimeoutMillis);
+            }
+            this.forkedProcessIdleTimeout = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Defines how Snap Services run in foreground.
+         *
+         * @param foregroundMode Either {@link #FOREGROUND_MODE_SLOTS} (the default) or
+         *                       {@link #FOREGROUND_MODE_SHARED_HOST}.
+         */
+        public Builder setForegroundMode(@ForegroundMode int foregroundMode) {
+            this.foregroundMode = foregroundMode;
+            return this;
+        }
+
+        /**
+         * With {@link #FOREGROUND_MODE_SHARED_HOST}, shows a single notification for all the Snap Services
+         * in foreground, built by the supplied aggregator. Without it, each one shows its own notification.
+         *
+         * @param aggregator Builds the notification shown for all the Snap Services in foreground.
+         */
+        public Builder setForegroundNotificationAggregator(SnapForegroundNotificationAggregator aggregator) {
+            this.foregroundNotificationAggregator = aggregator;
+            return this;
+        }
+
+        /**
+         * Calling {@link SnapService#startForeground(int, android.app.Notification)} again with the same
+         * notification id updates the notification in place. Updates closer than this interval are merged: only
+         * the latest one is posted, at the end of the interval.
+         *
+         * @param updateIntervalMillis Minimum time, in milliseconds, between two updates of the same notification.
+         *                             0 posts every update right away.
+         */
+        public Builder setForegroundUpdateInterval(long updateIntervalMillis) {
+            if (updateIntervalMillis < 0) {
+                throw new IllegalArgumentException("Foreground update interval can't be negative: " + updateIntervalMillis);
+            }
+            this.foregroundUpdateInterval = updateIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Keeps the alarms set through {@link com.android.snap.snapservices.alarms.SnapAlarmManager} in a
+         * single scheduler, which only sets the earliest one on the Android AlarmManager (one per alarm type),
+         * instead of one Android alarm per Snap alarm. The alarms are persisted, so they survive the process
+         * being killed.
+         *
+         * <p>Only extras that fit in an intent URI (primitives, strings and their arrays) are kept.</p>
+         *
+         * @param coalesce True to use the scheduler. False (the default) sets each alarm on the Android AlarmManager.
+         * @see #setAlarmToleranceWindow(long)
+         */
+        public Builder setCoalesceAlarms(boolean coalesce) {
+            this.coalesceAlarms = coalesce;
+            return this;
+        }
+
+        /**
+         * With {@link #setCoalesceAlarms(boolean)}, alarms due within this window after an alarm fires are
+         * delivered along with it, instead of waking the device up again.
+         *
+         * @param toleranceWindowMillis How long, in milliseconds, an alarm may be delivered before its time.
+         *                              0 (the default) only delivers the ones already due.
+         */
+        public Builder setAlarmToleranceWindow(long toleranceWindowMillis) {
+            if (toleranceWindowMillis < 0) {
+                throw new IllegalArgumentException("Alarm tolerance window can't be negative: " + toleranceWindowMillis);
+            }
+            this.alarmToleranceWindow = toleranceWindowMillis;
+            return this;
+        }
+
+        /**
+         * Delayed starts (see {@link com.android.snap.snapservices.SnapServicesContext#startServiceDelayed(android.content.Intent, long)})
+         * are kept in memory, by a timer wheel running on its own thread, which neither wakes the device up nor
+         * survives the process being killed. Delays this long, or longer, are set on the
+         * {@link com.android.snap.snapservices.alarms.SnapAlarmManager} instead.
+         *
+         * @param thresholdMillis The shortest delay, in milliseconds, that is set as an alarm.
+         *                        Defaults to {@link #DEFAULT_TIMER_ALARM_THRESHOLD}.
+         */
+        public Builder setTimerAlarmThreshold(long thresholdMillis) {
+            if (thresholdMillis <= 0) {
+                throw new IllegalArgumentException("Timer alarm threshold must be positive: " + thresholdMillis);
+            }
+            this.timerAlarmThreshold = thresholdMillis;
+            return this;
+        }
+
+        /**
+         * Sets the alarms of {@link com.android.snap.snapservices.alarms.SnapAlarmManager} again after the device
+         * reboots or the app is updated, all at once, as the Android alarms don't survive either. The app is started
+         * on every boot for it, so {@link com.android.snap.snapservices.SnapServicesContext#startup} must be called
+         * in <code>Application.onCreate()</code>.
+         *
+         * <p>{@link com.android.snap.snapservices.metrics.SnapMetrics#getAlarmRestoreDuration()} tells how long
+         * it took.</p>
+         *
+         * @param restore True to restore the alarms. False (the default) drops them on reboot.
+         */
+        public Builder setRestoreAlarmsOnBoot(boolean restore) {
+            this.restoreAlarmsOnBoot = restore;
+            return this;
+        }
+
+        /**
+         * Journals every Snap Intent started on each process, until it's handled. When the process is started
+         * again after being killed (ex: by the system, to reclaim memory), the intents that weren't handled are
+         * started again. An intent may then be handled twice, if the process died while handling it.
+         *
+         * <p>Only intents whose extras are primitives, strings, their arrays, string or integer lists, or bundles of
+         * those, are journaled. Others (ex: parcelables, serializables, binders) may not be readable once the app is
+         * updated.</p>
+         *
+         * @param durable True to journal the work. False (the default) loses the queued work when the process dies.
+         * @see #setJournalCommitInterval(long)
+         */
+        public Builder setDurableWork(boolean durable) {
+            this.durableWork = durable;
+            return this;
+        }
+
+        /**
+         * With {@link #setDurableWork(boolean)}, the journal survives the process being killed right away, but
+         * surviving a device crash needs it to be flushed to the disk. All the changes within this interval are
+         * flushed together.
+         *
+         * @param commitIntervalMillis How long, in milliseconds, changes may wait to be flushed.
+         *                             Defaults to {@link #DEFAULT_JOURNAL_COMMIT_INTERVAL}.
+         */
+        public Builder setJournalCommitInterval(long commitIntervalMillis) {
+            if (commitIntervalMillis < 0) {
+                throw new IllegalArgumentException("Journal commit interval can't be negative: " + commitIntervalMillis);
+            }
+            this.journalCommitInterval = commitIntervalMillis;
+            return this;
+        }
+
         public SnapConfigOptions build() {
             return new SnapConfigOptions(this);
         }
@@ -0,0 +1,120 @@
+package com.android.snap.snapservices.configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells if, and when, a request that failed should be handled again.
+ *
+ * <p>A Snap Service returns its policy from {@link com.android.snap.snapservices.SnapService#getRetryPolicy()}.
+ * When {@link com.android.snap.snapservices.SnapService#onHandleIntent(android.content.Intent)} throws one of the
+ * retryable exceptions, the request is handled again after a delay, until it succeeds or runs out of attempts.
+ * Other exceptions are thrown as usual.</p>
+ *
+ * <p>By default, the delay doubles after each attempt, up to {@link #DEFAULT_MAX_DELAY}, and is spread randomly
+ * by up to 20%, so requests that failed together don't all retry together.</p>
+ *
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * @Override
+ * protected SnapRetryPolicy getRetryPolicy() {
+ *     // up to 5 attempts: retries after ~1s, ~2s, ~4s and ~8s
+ *     return SnapRetryPolicy.create(5, 1000).retryOn(NetworkException.class);
+ * }
+ * }
+ * </pre>
+ */
+public final class SnapRetryPolicy {
+
+    /**
+     * The longest delay between attempts, unless another backoff policy is set.
+     */
+    public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final SnapBackoffPolicy backoff;
+    private final List<Class<? extends Throwable>> retryableExceptions;
+
+    private SnapRetryPolicy(int maxAttempts, long initialDelay, SnapBackoffPolicy backoff,
+                            List<Class<? extends Throwable>> retryableExceptions) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.backoff = backoff;
+        this.retryableExceptions = retryableExceptions;
+    }
+
+    /**
+     * Retries on any exception, with an exponential backoff.
+     *
+     * @param maxAttempts How many times a request may be handled, counting the first one. Must be at least 1.
+     * @param initialDelayMillis The delay, in milliseconds, before the first retry.
+     * @return The retry policy.
+     */
+    public static SnapRetryPolicy create(int maxAttempts, long initialDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least 1: " + maxAttempts);
+        }
+        if (initialDelayMillis < 0) {
+            throw new IllegalArgumentException("Retry delay can't be negative: " + initialDelayMillis);
+        }
+        return new SnapRetryPolicy(maxAttempts, initialDelayMillis,
+                SnapBackoffPolicy.exponential(2, DEFAULT_MAX_DELAY).withJitter(0.2f),
+                Collections.<Class<? extends Throwable>>emptyList());
+    }
+
+    /**
+     * @param backoff How the delay grows after each attempt.
+     * @return A copy of this retry policy with the backoff.
+     */
+    public SnapRetryPolicy withBackoff(SnapBackoffPolicy backoff) {
+        if (backoff == null) {
+            throw new IllegalArgumentException("Backoff policy cannot be null!");
+        }
+        return new SnapRetryPolicy(maxAttempts, initialDelay, backoff, retryableExceptions);
+    }
+
+    /**
+     * Only retries on the exceptions of this type (including its subclasses), and of the other types added.
+     *
+     * @param exceptionType The retryable exception type.
+     * @return A copy of this retry policy with the exception type.
+     */
+    public SnapRetryPolicy retryOn(Class<? extends Throwable> exceptionType) {
+        if (exceptionType == null) {
+            throw new IllegalArgumentException("Exception type cannot be null!");
+        }
+        List<Class<? extends Throwable>> exceptions = new ArrayList<>(retryableExceptions);
+        exceptions.add(exceptionType);
+        return new SnapRetryPolicy(maxAttempts, initialDelay, backoff, exceptions);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param error What the request failed with.
+     * @return True if the request should be retried for this error.
+     */
+    public boolean isRetryable(Throwable error) {
+        if (retryableExceptions.isEmpty()) return true;
+
+        for (Class<? extends Throwable> exceptionType : retryableExceptions) {
+            if (exceptionType.isInstance(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param attempts How many times the request was already handled.
+     * @return The delay, in milliseconds, before handling it again.
+     */
+    public long getDelay(int attempts) {
+        return backoff.getDelay(initialDelay, attempts - 1);
+    }
+}
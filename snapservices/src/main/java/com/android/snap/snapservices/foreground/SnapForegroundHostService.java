@@ -0,0 +1,14 @@
+package com.android.snap.snapservices.foreground;
+
+/**
+ * Single foreground service holding the foreground state of all the Snap Services, when running
+ * in the shared host mode.
+ *
+ * @see com.android.snap.snapservices.configuration.SnapConfigOptions#FOREGROUND_MODE_SHARED_HOST
+ */
+public class SnapForegroundHostService extends ForegroundService {
+    @Override
+    String getServiceName() {
+        return "SnapForegroundHostService";
+    }
+}
@@ -0,0 +1,308 @@
+package com.android.snap.snapservices.foreground;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.configuration.SnapConfigOptions;
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts the Snap Services that want to run in foreground on a {@link ForegroundService}.
+ *
+ * <p>By default, each one takes its own slot. There's a fixed number of slots, generated at build time
+ * (see the <code>foregroundSlots</code> property). Taking and freeing a slot doesn't depend on how many there are.
+ * When all of them are taken, requests wait in line and each freed slot is handed to the oldest waiting
+ * Snap Service.</p>
+ *
+ * <p>With {@link SnapConfigOptions#FOREGROUND_MODE_SHARED_HOST}, they all share the
+ * {@link SnapForegroundHostService} instead, which only needs to be started once. It shows the notification of
+ * the first Snap Service that joined (the primary one), while the others are posted as regular notifications.
+ * With a {@link SnapForegroundNotificationAggregator}, a single aggregated notification is shown instead.</p>
+ *
+ * <p>Once a Snap Service is in foreground, newer notifications with the same id (ex: progress updates) are
+ * posted in place through the {@link NotificationManager}, without starting any service. Those updates are
+ * rate limited: within the update interval only the latest one is posted, at the end of the interval.</p>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SnapForegroundManager {
+
+    /**
+     * A Snap Service waiting for a free slot.
+     */
+    private static final class ForegroundRequest {
+        final int notificationId;
+        final Notification notification;
+
+        ForegroundRequest(int notificationId, Notification notification) {
+            this.notificationId = notificationId;
+            this.notification = notification;
+        }
+    }
+
+    private final Context context;
+    private final int foregroundMode;
+    private final SnapForegroundNotificationAggregator aggregator;
+    private final NotificationManager notificationManager;
+    private final long updateInterval;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Class<? extends ForegroundService>> mFreeSlots = new ArrayDeque<>();
+    private final Map<ComponentName, Class<? extends ForegroundService>> mTakenSlots = new HashMap<>();
+    private final Map<ComponentName, Integer> mSlotNotificationIds = new HashMap<>();
+    private final LinkedHashMap<ComponentName, ForegroundRequest> mWaitingRequests = new LinkedHashMap<>();
+
+    /**
+     * Snap Services in foreground on the shared host, in the order they joined it.
+     */
+    private final LinkedHashMap<ComponentName, ForegroundRequest> mHostedRequests = new LinkedHashMap<>();
+    private ForegroundRequest mHostForeground;
+
+    /**
+     * When each notification was last posted, to rate limit its updates.
+     */
+    private final Map<Integer, Long> mLastUpdates = new HashMap<>();
+    /**
+     * Latest notification update waiting for the end of the update interval, by notification id.
+     */
+    private final Map<Integer, Notification> mPendingUpdates = new HashMap<>();
+
+    public SnapForegroundManager(Context context, SnapConfigOptions options) {
+        this.context = context;
+        this.foregroundMode = options.getForegroundMode();
+        this.aggregator = options.getForegroundNotificationAggregator();
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.updateInterval = options.getForegroundUpdateInterval();
+        for (int i = 0; i < SnapForegroundSlots.COUNT; i++) {
+            mFreeSlots.add(SnapForegroundSlots.slot(i));
+        }
+    }
+
+    /**
+     * Puts the Snap Service in foreground, on its slot if it already has one. Otherwise it takes a free slot
+     * or, if there's none, waits for one.
+     *
+     * @param service The Snap Service.
+     * @param notificationId The id of the notification to show.
+     * @param notification The notification to show while it's in foreground.
+     */
+    public synchronized void startForeground(ComponentName service, int notificationId, Notification notification) {
+        if (foregroundMode == SnapConfigOptions.FOREGROUND_MODE_SHARED_HOST) {
+            ForegroundRequest request = new ForegroundRequest(notificationId, notification);
+            ForegroundRequest previous = mHostedRequests.put(service, request);
+            if (previous != null && previous.notificationId != notificationId && aggregator == null) {
+                cancelNotification(previous.notificationId);
+            }
+            updateHost();
+            if (aggregator == null && request != mHostForeground) {
+                postUpdate(notificationId, notification);
+            }
+            return;
+        }
+
+        Class<? extends ForegroundService> slot = mTakenSlots.get(service);
+        Integer slotNotificationId = mSlotNotificationIds.get(service);
+        if (slot != null && slotNotificationId != null && slotNotificationId == notificationId) {
+            // already in foreground with this notification. Just update it.
+            postUpdate(notificationId, notification);
+            return;
+        }
+
+        if (slot == null) {
+            slot = mFreeSlots.poll();
+        }
+
+        if (slot == null) {
+            SnapLogger.d("No foreground slot available. Waiting for one [service=" + service + "]");
+            // a newer request from the same Snap Service replaces the one waiting, keeping its place in line.
+            mWaitingRequests.put(service, new ForegroundRequest(notificationId, notification));
+            return;
+        }
+
+        startSlot(service, slot, notificationId, notification);
+    }
+
+    /**
+     * Takes the Snap Service out of foreground, handing its slot to the next one waiting, if any.
+     *
+     * @param service The Snap Service.
+     */
+    public synchronized void stopForeground(ComponentName service) {
+        if (foregroundMode == SnapConfigOptions.FOREGROUND_MODE_SHARED_HOST) {
+            ForegroundRequest request = mHostedRequests.remove(service);
+            if (request == null) return;
+
+            if (aggregator == null && request != mHostForeground) {
+                cancelNotification(request.notificationId);
+            }
+            updateHost();
+            return;
+        }
+
+        if (mWaitingRequests.remove(service) != null) {
+            SnapLogger.v("Foreground request no longer waiting [service=" + service + "]");
+            return;
+        }
+
+        Class<? extends ForegroundService> slot = mTakenSlots.remove(service);
+        if (slot == null) {
+            return;
+        }
+        forgetNotification(mSlotNotificationIds.remove(service));
+
+        Iterator<Map.Entry<ComponentName, ForegroundRequest>> waiting = mWaitingRequests.entrySet().iterator();
+        if (waiting.hasNext()) {
+            Map.Entry<ComponentName, ForegroundRequest> next = waiting.next();
+            waiting.remove();
+            SnapLogger.v("Handing foreground slot [slot=" + slot.getSimpleName() + "] from " + service
+                    + " to " + next.getKey());
+            // starting the slot with the new notification replaces the old one.
+            startSlot(next.getKey(), slot, next.getValue().notificationId, next.getValue().notification);
+            return;
+        }
+
+        Intent foregroundService = new Intent(context, slot);
+        foregroundService.setAction(ForegroundService.ACTION_STOP_FOREGROUND);
+        startService(foregroundService);
+        mFreeSlots.push(slot);
+    }
+
+    /**
+     * Brings the shared host up to date with the Snap Services in foreground: starts it with the primary
+     * (or aggregated) notification, or stops it once they all left. The notifications of the other Snap Services
+     * are already posted, so a new primary one takes over its own notification.
+     */
+    private void updateHost() {
+        if (mHostedRequests.isEmpty()) {
+            SnapLogger.v("No more Snap Services in foreground. Stopping the host.");
+            if (mHostForeground != null) {
+                forgetNotification(mHostForeground.notificationId);
+            }
+            mHostForeground = null;
+            Intent foregroundService = new Intent(context, SnapForegroundHostService.class);
+            foregroundService.setAction(ForegroundService.ACTION_STOP_FOREGROUND);
+            startService(foregroundService);
+            return;
+        }
+
+        ForegroundRequest hostForeground;
+        if (aggregator != null) {
+            List<Notification> notifications = new ArrayList<>(mHostedRequests.size());
+            for (ForegroundRequest request : mHostedRequests.values()) {
+                notifications.add(request.notification);
+            }
+            hostForeground = new ForegroundRequest(aggregator.getNotificationId(), aggregator.aggregate(notifications));
+        } else {
+            hostForeground = mHostedRequests.values().iterator().next();
+        }
+
+        if (hostForeground == mHostForeground) {
+            return;
+        }
+
+        ForegroundRequest previousHostForeground = mHostForeground;
+        mHostForeground = hostForeground;
+        if (previousHostForeground != null && previousHostForeground.notificationId == hostForeground.notificationId) {
+            // the host is already in foreground with this notification. Just update it.
+            postUpdate(hostForeground.notificationId, hostForeground.notification);
+        } else {
+            if (previousHostForeground != null) {
+                forgetNotification(previousHostForeground.notificationId);
+            }
+            Intent foregroundService = new Intent(context, SnapForegroundHostService.class);
+            foregroundService.setAction(ForegroundService.ACTION_START_FOREGROUND);
+            foregroundService.putExtra(ForegroundService.NOTIFICATION_EXTRA, hostForeground.notification);
+            foregroundService.putExtra(ForegroundService.NOTIFICATION_ID_EXTRA, hostForeground.notificationId);
+            startService(foregroundService);
+            mLastUpdates.put(hostForeground.notificationId, SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Posts the notification in place, unless it was posted less than the update interval ago. In that case,
+     * it's posted at the end of the interval, unless a newer update replaces it in the meantime.
+     */
+    private void postUpdate(final int notificationId, Notification notification) {
+        long now = SystemClock.uptimeMillis();
+        Long lastUpdate = mLastUpdates.get(notificationId);
+        if (lastUpdate == null || now - lastUpdate >= updateInterval) {
+            mPendingUpdates.remove(notificationId);
+            mLastUpdates.put(notificationId, now);
+            notificationManager.notify(notificationId, notification);
+            return;
+        }
+
+        if (mPendingUpdates.put(notificationId, notification) != null) {
+            // the trailing update is already scheduled.
+            return;
+        }
+
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SnapForegroundManager.this) {
+                    Notification pendingUpdate = mPendingUpdates.remove(notificationId);
+                    if (pendingUpdate == null) return;
+
+                    mLastUpdates.put(notificationId, SystemClock.uptimeMillis());
+                    notificationManager.notify(notificationId, pendingUpdate);
+                }
+            }
+        }, lastUpdate + updateInterval);
+    }
+
+    private void cancelNotification(int notificationId) {
+        forgetNotification(notificationId);
+        notificationManager.cancel(notificationId);
+    }
+
+    /**
+     * Drops the pending update of a notification that is no longer shown, so it doesn't show up again.
+     */
+    private void forgetNotification(Integer notificationId) {
+        if (notificationId == null) return;
+
+        mPendingUpdates.remove(notificationId);
+        mLastUpdates.remove(notificationId);
+    }
+
+    private void startSlot(ComponentName service, Class<? extends ForegroundService> slot, int notificationId, Notification notification) {
+        Intent foregroundService = new Intent(context, slot);
+        foregroundService.setAction(ForegroundService.ACTION_START_FOREGROUND);
+        foregroundService.putExtra(ForegroundService.NOTIFICATION_EXTRA, notification);
+        foregroundService.putExtra(ForegroundService.NOTIFICATION_ID_EXTRA, notificationId);
+        startService(foregroundService);
+
+        mTakenSlots.put(service, slot);
+        forgetNotification(mSlotNotificationIds.put(service, notificationId));
+        mLastUpdates.put(notificationId, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Wrapper to start a foreground service.
+     *
+     * @param foregroundService The service to be started.
+     */
+    private void startService(Intent foregroundService) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            context.startService(foregroundService);
+        } else {
+            //Android O
+            context.startForegroundService(foregroundService);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.android.snap.snapservices.foreground;
+
+import android.app.Notification;
+
+import java.util.List;
+
+/**
+ * Builds a single notification for all the Snap Services in foreground, when running in the shared host mode.
+ *
+ * <p>It's called every time a Snap Service joins or leaves the foreground, or updates its notification.</p>
+ *
+ * @see com.android.snap.snapservices.configuration.SnapConfigOptions.Builder#setForegroundNotificationAggregator(SnapForegroundNotificationAggregator)
+ */
+public interface SnapForegroundNotificationAggregator {
+
+    /**
+     * @return The id of the aggregated notification. It must not be used by any other notification.
+     */
+    int getNotificationId();
+
+    /**
+     * Builds the aggregated notification.
+     *
+     * @param notifications The notifications of the Snap Services in foreground, in the order they joined it.
+     * @return The notification to show while there are Snap Services in foreground.
+     */
+    Notification aggregate(List<Notification> notifications);
+}
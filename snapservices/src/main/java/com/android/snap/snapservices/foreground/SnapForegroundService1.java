@@ -1,8 +0,0 @@
-package com.android.snap.snapservices.foreground;
-
-public class SnapForegroundService1 extends ForegroundService{
-    @Override
-    String getServiceName() {
-        return "SnapForegroundService1";
-    }
-}
@@ -1,8 +0,0 @@
-package com.android.snap.snapservices.foreground;
-
-public class SnapForegroundService2 extends ForegroundService{
-    @Override
-    String getServiceName() {
-        return "SnapForegroundService2";
-    }
-}
@@ -0,0 +1,428 @@
+package com.android.snap.snapservices.ipc;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.alarms.BaseSnapProxyReceiver;
+import com.android.snap.snapservices.alarms.SnapAlarmManager;
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct channel used to forward Snap Intents to another process.
+ *
+ * <p>Each process keeps its own {@link SnapChannelService} bound (see {@link #bindOwnService(Context, Class)})
+ * and binds, without creating it, the one of the other process. While the other process is running, intents are
+ * sent straight to its channel service through a {@link Messenger}. When it isn't running (or it dies in the
+ * meantime), they're held until it connects, and its proxy receiver is asked to start it. Sending them through the
+ * proxy receiver meanwhile would let the intents sent through the {@link Messenger} later overtake the broadcasts
+ * still on their way.</p>
+ *
+ * <p>If the other process doesn't connect in time (ex: a slow cold start), the held intents, and every one after
+ * them, are sent to its proxy receiver instead. Broadcasts keep their order. Once it connects, and all the
+ * broadcasts sent meanwhile were received, intents go through the {@link Messenger} again.</p>
+ *
+ * <p>Intents forwarded in bursts are batched: they're collected for a short window, or until the batch is
+ * big enough, and sent together as a single {@link SnapFrame}.</p>
+ *
+ * <p>It also keeps an estimate of the other process load: the work it reported as pending, plus the
+ * intents forwarded since then.</p>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SnapChannel {
+
+    /**
+     * Keeps each frame well below the binder transaction limit.
+     */
+    private static final int MAX_FRAME_BYTES = 64 * 1024;
+    /**
+     * How long, in milliseconds, intents are held waiting for the other process to connect.
+     */
+    private static final long CONNECT_TIMEOUT = 10000;
+
+    private final Context context;
+    private final Class<? extends SnapChannelService> peerService;
+    private final Class<? extends BaseSnapProxyReceiver> peerReceiver;
+
+    private final Handler mHandler;
+    private final long batchWindow;
+    private final int batchSize;
+
+    private final Object mLock = new Object();
+    private volatile Messenger mPeerMessenger;
+    private SnapFrame mPendingFrame;
+    private boolean mFlushScheduled;
+    /**
+     * Intents forwarded while the other process wasn't connected, in the order they were forwarded.
+     */
+    private final List<Intent> mWaitingIntents = new ArrayList<>();
+    /**
+     * Set while the other process failed to connect. Everything goes through its proxy receiver meanwhile.
+     */
+    private boolean mBroadcastOnly;
+    /**
+     * Broadcasts sent to the other process proxy receiver that it didn't receive yet.
+     */
+    private int mBroadcastsInFlight;
+    private final AtomicInteger mPeerLoad = new AtomicInteger();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                flushLocked();
+            }
+        }
+    };
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mPeerMessenger != null || mWaitingIntents.isEmpty()) return;
+
+                SnapLogger.w("The other process channel didn't connect. Forwarding through its proxy receiver "
+                        + "[receiver=" + peerReceiver + "]");
+                mBroadcastOnly = true;
+                for (Intent intent : mWaitingIntents) {
+                    sendToReceiver(intent);
+                }
+                mWaitingIntents.clear();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mBroadcastReceived = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mLock) {
+                mBroadcastsInFlight--;
+                leaveBroadcastOnlyLocked();
+            }
+        }
+    };
+
+    private final ServiceConnection mPeerConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            SnapLogger.v("Connected to the other process channel [component=" + name + "]");
+            synchronized (mLock) {
+                mPeerMessenger = new Messenger(service);
+                mHandler.removeCallbacks(mConnectTimeout);
+                leaveBroadcastOnlyLocked();
+                // the held intents go first, before anything forwarded from now on.
+                List<Intent> waitingIntents = new ArrayList<>(mWaitingIntents);
+                mWaitingIntents.clear();
+                for (Intent intent : waitingIntents) {
+                    forwardLocked(intent);
+                }
+                flushLocked();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            SnapLogger.v("Disconnected from the other process channel [component=" + name + "]");
+            synchronized (mLock) {
+                mPeerMessenger = null;
+            }
+            // it died, along with all its work.
+            mPeerLoad.set(0);
+        }
+    };
+
+    /**
+     * @param context The application context.
+     * @param peerService The channel service running on the other process.
+     * @param peerReceiver The proxy receiver running on the other process, used while it isn't running.
+     * @param looper The looper on which batches are sent.
+     * @param batchWindow How long, in milliseconds, forwarded intents wait to be sent in the same batch.
+     * @param batchSize How many intents are sent at most in the same batch. 1 disables batching.
+     */
+    public SnapChannel(Context context, Class<? extends SnapChannelService> peerService,
+                       Class<? extends BaseSnapProxyReceiver> peerReceiver,
+                       Looper looper, long batchWindow, int batchSize) {
+        this.context = context;
+        this.peerService = peerService;
+        this.peerReceiver = peerReceiver;
+        this.mHandler = new Handler(looper);
+        this.batchWindow = batchWindow;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Binds the channel service of this process, so the other processes can connect to it.
+     *
+     * @param context The application context.
+     * @param ownService The channel service running on this process.
+     */
+    public static void bindOwnService(Context context, Class<? extends SnapChannelService> ownService) {
+        try {
+            context.bindService(new Intent(context, ownService), new ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName name, IBinder service) {
+
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName name) {
+
+                }
+            }, Context.BIND_AUTO_CREATE);
+        } catch (Exception ex) {
+            SnapLogger.e("Error binding the Snap channel service [service=" + ownService + "]", ex);
+        }
+    }
+
+    /**
+     * Binds the channel service of the other process, with the context this channel was created with. Without
+     * {@link Context#BIND_AUTO_CREATE}, the binding doesn't start it: it connects whenever the other process binds
+     * its own channel service. If it can't be bound, everything goes through the proxy receiver.
+     */
+    public void connect() {
+        try {
+            context.bindService(new Intent(context, peerService), mPeerConnection, 0);
+        } catch (Exception ex) {
+            SnapLogger.e("Error binding the Snap channel services. Forwarding through the proxy receivers.", ex);
+            synchronized (mLock) {
+                mBroadcastOnly = true;
+            }
+        }
+    }
+
+    /**
+     * Starts the other process, if it isn't running yet, without delivering any work to it.
+     */
+    public void prewarm() {
+        if (mPeerMessenger != null) return;
+
+        SnapLogger.v("Prewarming the other process [receiver=" + peerReceiver + "]");
+        startPeer();
+    }
+
+    private void startPeer() {
+        Intent prewarmIntent = new Intent(context, peerReceiver);
+        prewarmIntent.setAction(BaseSnapProxyReceiver.ACTION_PREWARM);
+        context.sendBroadcast(prewarmIntent);
+    }
+
+    /**
+     * @return True if there are intents not sent to the other process yet.
+     */
+    public boolean hasPendingIntents() {
+        synchronized (mLock) {
+            return !mWaitingIntents.isEmpty() || (mPendingFrame != null && mPendingFrame.size() > 0);
+        }
+    }
+
+    /**
+     * @return The estimated number of Snap Intents pending on the other process.
+     */
+    public int getPeerLoad() {
+        return mPeerLoad.get();
+    }
+
+    /**
+     * Called when the other process reports how much work it has pending.
+     *
+     * @param load The number of Snap Intents pending on the other process.
+     */
+    public void onPeerLoadReported(int load) {
+        mPeerLoad.set(load);
+    }
+
+    /**
+     * Reports to the other process how much work is pending on this one.
+     *
+     * @param processIndex The index of this process.
+     * @param load The number of Snap Intents pending on this process.
+     */
+    public void reportLoad(int processIndex, int load) {
+        synchronized (mLock) {
+            Message msg = Message.obtain(null, SnapChannelService.MSG_REPORT_LOAD, processIndex, load);
+            sendToPeerLocked(msg);
+        }
+    }
+
+    /**
+     * Reports to the other process the forwarded intents this one received since the last report, so they're
+     * counted by its {@link com.android.snap.snapservices.metrics.SnapMetrics}.
+     *
+     * @param forwards The cold forwards, their total latency, the warm forwards and their total latency.
+     * @return True if they were reported, false if the other process isn't connected.
+     */
+    public boolean reportForwards(long[] forwards) {
+        synchronized (mLock) {
+            Bundle data = new Bundle();
+            data.putLongArray(SnapChannelService.KEY_FORWARDS, forwards);
+            return sendToPeerLocked(SnapChannelService.MSG_REPORT_FORWARDS, data);
+        }
+    }
+
+    /**
+     * Forwards the Snap Intent to the other process.
+     * Intents are always delivered in the same order they're forwarded.
+     *
+     * @param intent The Snap Intent.
+     */
+    public void forward(Intent intent) {
+        mPeerLoad.incrementAndGet();
+        synchronized (mLock) {
+            forwardLocked(intent);
+        }
+    }
+
+    /**
+     * The caller must hold {@link #mLock}.
+     */
+    private void forwardLocked(Intent intent) {
+        if (mBroadcastOnly) {
+            sendToReceiver(intent);
+            return;
+        }
+
+        if (mPeerMessenger == null) {
+            holdLocked(intent);
+            return;
+        }
+
+        if (batchSize <= 1) {
+            flushLocked();
+            sendLocked(intent);
+            return;
+        }
+
+        if (mPendingFrame == null) {
+            mPendingFrame = new SnapFrame();
+        }
+
+        if (!mPendingFrame.add(intent)) {
+            // keep the order: everything batched so far goes first.
+            flushLocked();
+            sendLocked(intent);
+            return;
+        }
+
+        if (mPendingFrame.size() >= batchSize || mPendingFrame.byteSize() >= MAX_FRAME_BYTES) {
+            flushLocked();
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, batchWindow);
+        }
+    }
+
+    /**
+     * Goes back to the {@link Messenger} once the other process is connected and received every broadcast sent
+     * to it, so the intents sent through it don't overtake the broadcasts. The caller must hold {@link #mLock}.
+     */
+    private void leaveBroadcastOnlyLocked() {
+        if (!mBroadcastOnly || mPeerMessenger == null || mBroadcastsInFlight > 0) return;
+
+        SnapLogger.v("The other process channel connected. Forwarding through it again "
+                + "[receiver=" + peerReceiver + "]");
+        mBroadcastOnly = false;
+    }
+
+    /**
+     * Holds the intent until the other process connects, starting it if this is the first one held.
+     * The caller must hold {@link #mLock}.
+     */
+    private void holdLocked(Intent intent) {
+        if (mWaitingIntents.isEmpty()) {
+            SnapLogger.v("The other process channel isn't connected. Starting it [receiver=" + peerReceiver + "]");
+            startPeer();
+            mHandler.removeCallbacks(mConnectTimeout);
+            mHandler.postDelayed(mConnectTimeout, CONNECT_TIMEOUT);
+        }
+        mWaitingIntents.add(intent);
+    }
+
+    /**
+     * Sends the pending batch, if any. The caller must hold {@link #mLock}.
+     */
+    private void flushLocked() {
+        SnapFrame frame = mPendingFrame;
+        mPendingFrame = null;
+        if (frame == null || frame.size() == 0) return;
+
+        if (frame.size() == 1) {
+            sendLocked(frame.getIntents().get(0));
+            return;
+        }
+
+        Bundle data = new Bundle();
+        data.putByteArray(SnapChannelService.KEY_SNAP_FRAME, frame.toByteArray());
+        if (sendToPeerLocked(SnapChannelService.MSG_START_SNAP_SERVICES, data)) {
+            SnapLogger.v("Forwarded a batch of " + frame.size() + " intents to the other process.");
+            return;
+        }
+
+        for (Intent intent : frame.getIntents()) {
+            forwardLocked(intent);
+        }
+    }
+
+    /**
+     * Sends a single Snap Intent to the other process. The caller must hold {@link #mLock}.
+     */
+    private void sendLocked(Intent intent) {
+        Bundle data = new Bundle();
+        data.putParcelable(SnapChannelService.KEY_SNAP_INTENT, intent);
+        if (!sendToPeerLocked(SnapChannelService.MSG_START_SNAP_SERVICE, data)) {
+            forwardLocked(intent);
+        }
+    }
+
+    /**
+     * @return True if it was sent to the other process channel service.
+     */
+    private boolean sendToPeerLocked(int what, Bundle data) {
+        Message msg = Message.obtain(null, what);
+        msg.setData(data);
+        return sendToPeerLocked(msg);
+    }
+
+    /**
+     * @return True if it was sent to the other process channel service.
+     */
+    private boolean sendToPeerLocked(Message msg) {
+        Messenger peerMessenger = mPeerMessenger;
+        if (peerMessenger == null) return false;
+
+        try {
+            peerMessenger.send(msg);
+            return true;
+        } catch (RemoteException ex) {
+            SnapLogger.v("The other process channel died. Holding the intents until it's started again.", ex);
+            mPeerMessenger = null;
+            return false;
+        }
+    }
+
+    /**
+     * Sends the Snap Intent to the other process proxy receiver, counting it until it's received.
+     * The caller must hold {@link #mLock}.
+     */
+    private void sendToReceiver(Intent intent) {
+        Intent realIntent = SnapAlarmManager.convertSnapIntentToIntent(context, intent);
+        realIntent.setClass(context, peerReceiver);
+        mBroadcastsInFlight++;
+        // the result comes back once the proxy receiver handled it.
+        context.sendOrderedBroadcast(realIntent, null, mBroadcastReceived, mHandler, 0, null, null);
+    }
+}
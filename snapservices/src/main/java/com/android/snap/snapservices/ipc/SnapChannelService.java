@@ -0,0 +1,83 @@
+package com.android.snap.snapservices.ipc;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+
+import com.android.snap.snapservices.SnapServicesContext;
+import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.metrics.SnapMetrics;
+
+import java.util.List;
+
+/**
+ * Android Service that receives the Snap Intents forwarded by the other process, through a {@link Messenger},
+ * and delivers them to the correct Snap Service recipient.
+ *
+ * <p>It does no work by itself: each process keeps its own channel service bound, so that the other process
+ * can bind it too and use it to deliver work directly. See {@link SnapChannel}.</p>
+ */
+public abstract class SnapChannelService extends Service {
+
+    static final int MSG_START_SNAP_SERVICE = 1;
+    static final int MSG_START_SNAP_SERVICES = 2;
+    static final int MSG_REPORT_LOAD = 3;
+    static final int MSG_REPORT_FORWARDS = 4;
+    static final String KEY_SNAP_INTENT = "com.android.snap.extra.SNAP_CHANNEL_INTENT";
+    static final String KEY_SNAP_FRAME = "com.android.snap.extra.SNAP_CHANNEL_FRAME";
+    static final String KEY_FORWARDS = "com.android.snap.extra.SNAP_CHANNEL_FORWARDS";
+
+    private Messenger mMessenger;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mMessenger = new Messenger(new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                Bundle data = msg.getData();
+                data.setClassLoader(getClassLoader());
+                switch (msg.what) {
+                    case MSG_START_SNAP_SERVICE:
+                        Intent intent = data.getParcelable(KEY_SNAP_INTENT);
+                        if (intent == null) return;
+
+                        SnapLogger.v("Received channel request for intent: " + intent);
+                        startSnapService(intent);
+                        break;
+                    case MSG_START_SNAP_SERVICES:
+                        List<Intent> intents = SnapFrame.decode(data.getByteArray(KEY_SNAP_FRAME), getClassLoader());
+                        SnapLogger.v("Received channel request for a batch of " + intents.size() + " intents.");
+                        SnapServicesContext.startForwardedServices(intents);
+                        break;
+                    case MSG_REPORT_LOAD:
+                        SnapServicesContext.onForkedProcessLoadReported(msg.arg1, msg.arg2);
+                        break;
+                    case MSG_REPORT_FORWARDS:
+                        long[] forwards = data.getLongArray(KEY_FORWARDS);
+                        if (forwards == null || forwards.length != 4) return;
+
+                        SnapMetrics.onForwardsReported(forwards[0], forwards[1], forwards[2], forwards[3]);
+                        break;
+                }
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    /**
+     * Starts the snap service in the correct way. The class implementing this will know if it
+     * should launch the snap services in the main process or in the secondary.
+     * @param intent The Snap Intent. No need to perform any other change to it.
+     */
+    protected abstract void startSnapService(Intent intent);
+}
@@ -0,0 +1,227 @@
+package com.android.snap.snapservices.ipc;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of several Snap Intents, forwarded to the other process in a single IPC call.
+ *
+ * <p>Layout: magic, version, a table with every distinct string (package, class, action, data and type) as
+ * length prefixed UTF-8, followed by one record per intent holding string table indexes, the flags and the extras
+ * marshalled by {@link Parcel}. Repeated components and actions are only encoded once per frame.</p>
+ *
+ * <p>Not every intent can be encoded: intents without component, with categories, a package, a selector, clip data
+ * or source bounds, or whose extras hold file descriptors or binders must still be forwarded on their own.</p>
+ */
+final class SnapFrame {
+
+    private static final int MAGIC = 0x534e5046; // SNPF
+    private static final int VERSION = 1;
+    private static final int NO_STRING = -1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, Integer> mStringIndexes = new HashMap<>();
+    private final ByteArrayOutputStream mStringsBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mStrings = new DataOutputStream(mStringsBytes);
+    private final List<Intent> mIntents = new ArrayList<>();
+    private final ByteArrayOutputStream mRecordsBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mRecords = new DataOutputStream(mRecordsBytes);
+
+    /**
+     * Adds the intent to this frame.
+     *
+     * @param intent The Snap Intent.
+     * @return False if this intent can't be encoded and must be forwarded on its own.
+     */
+    boolean add(Intent intent) {
+        ComponentName component = intent.getComponent();
+        if (component == null || intent.getCategories() != null || intent.hasFileDescriptors()
+                || intent.getPackage() != null || intent.getSelector() != null || intent.getClipData() != null
+                || intent.getSourceBounds() != null) {
+            // the frame doesn't carry them.
+            return false;
+        }
+
+        byte[] extras = marshallExtras(intent.getExtras());
+        if (extras == null) {
+            return false;
+        }
+
+        try {
+            mRecords.writeInt(indexOf(component.getPackageName()));
+            mRecords.writeInt(indexOf(component.getClassName()));
+            mRecords.writeInt(indexOf(intent.getAction()));
+            mRecords.writeInt(indexOf(intent.getData() == null ? null : intent.getData().toString()));
+            mRecords.writeInt(indexOf(intent.getType()));
+            mRecords.writeInt(intent.getFlags());
+            mRecords.writeInt(extras.length);
+            mRecords.write(extras);
+        } catch (IOException ex) {
+            // never happens when writing to memory.
+            throw new IllegalStateException(ex);
+        }
+        mIntents.add(intent);
+        return true;
+    }
+
+    /**
+     * @return The intents added to this frame, in order.
+     */
+    List<Intent> getIntents() {
+        return mIntents;
+    }
+
+    int size() {
+        return mIntents.size();
+    }
+
+    /**
+     * @return Approximate size, in bytes, of the encoded frame.
+     */
+    int byteSize() {
+        return mStrings.size() + mRecords.size();
+    }
+
+    /**
+     * Encodes every intent added so far.
+     *
+     * @return The encoded frame.
+     */
+    byte[] toByteArray() {
+        byte[] strings = mStringsBytes.toByteArray();
+        byte[] records = mRecordsBytes.toByteArray();
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4 + strings.length + 4 + records.length);
+        frame.putInt(MAGIC)
+                .put((byte) VERSION)
+                .putInt(mStringIndexes.size())
+                .put(strings)
+                .putInt(mIntents.size())
+                .put(records);
+        return frame.array();
+    }
+
+    /**
+     * Decodes a frame created by {@link #toByteArray()}.
+     *
+     * @param frame The encoded frame.
+     * @param classLoader The class loader used to read the extras.
+     * @return The decoded intents, in order, or an empty list if the frame isn't valid.
+     */
+    static List<Intent> decode(byte[] frame, ClassLoader classLoader) {
+        List<Intent> intents = new ArrayList<>();
+        if (frame == null) return intents;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                SnapLogger.w("Unknown Snap frame format. Dropping it.");
+                return intents;
+            }
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] string = new byte[in.readInt()];
+                in.readFully(string);
+                strings[i] = new String(string, UTF_8);
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = stringAt(strings, in.readInt());
+                String className = stringAt(strings, in.readInt());
+                String action = stringAt(strings, in.readInt());
+                String data = stringAt(strings, in.readInt());
+                String type = stringAt(strings, in.readInt());
+                int flags = in.readInt();
+                byte[] extras = new byte[in.readInt()];
+                in.readFully(extras);
+
+                Intent intent = new Intent(action);
+                intent.setClassName(packageName, className);
+                if (data != null && type != null) {
+                    intent.setDataAndType(Uri.parse(data), type);
+                } else if (data != null) {
+                    intent.setData(Uri.parse(data));
+                } else if (type != null) {
+                    intent.setType(type);
+                }
+                intent.setFlags(flags);
+                Bundle bundle = unmarshallExtras(extras, classLoader);
+                if (bundle != null) {
+                    intent.putExtras(bundle);
+                }
+                intents.add(intent);
+            }
+        } catch (IOException ex) {
+            SnapLogger.e("Error decoding Snap frame. Delivering the intents decoded so far.", ex);
+        }
+        return intents;
+    }
+
+    private int indexOf(String string) throws IOException {
+        if (string == null) return NO_STRING;
+
+        Integer index = mStringIndexes.get(string);
+        if (index == null) {
+            index = mStringIndexes.size();
+            byte[] bytes = string.getBytes(UTF_8);
+            mStrings.writeInt(bytes.length);
+            mStrings.write(bytes);
+            mStringIndexes.put(string, index);
+        }
+        return index;
+    }
+
+    private static String stringAt(String[] strings, int index) {
+        return index == NO_STRING ? null : strings[index];
+    }
+
+    /**
+     * @return The marshalled extras, an empty array if there are none, or null if they can't be marshalled.
+     */
+    private static byte[] marshallExtras(Bundle extras) {
+        if (extras == null || extras.isEmpty()) return new byte[0];
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(extras);
+            return parcel.marshall();
+        } catch (RuntimeException ex) {
+            // it holds active objects, like binders.
+            SnapLogger.v("Extras can't be marshalled. Forward the intent on its own.", ex);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Bundle unmarshallExtras(byte[] extras, ClassLoader classLoader) {
+        if (extras.length == 0) return null;
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(extras, 0, extras.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(classLoader);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
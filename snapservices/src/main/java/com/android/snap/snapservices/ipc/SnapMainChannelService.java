@@ -0,0 +1,17 @@
+package com.android.snap.snapservices.ipc;
+
+import android.content.Intent;
+
+import com.android.snap.snapservices.SnapServicesContext;
+
+/**
+ * Channel service that will receive all forwarded requests on the main process and deliver them to the
+ * correct Snap Service recipient.
+ */
+public class SnapMainChannelService extends SnapChannelService {
+
+    @Override
+    protected void startSnapService(Intent intent) {
+        SnapServicesContext.startService(intent);
+    }
+}
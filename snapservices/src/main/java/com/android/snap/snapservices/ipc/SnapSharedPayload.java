@@ -0,0 +1,262 @@
+package com.android.snap.snapservices.ipc;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+import com.android.snap.snapservices.scheduler.SnapBackgroundExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport for large payloads sent to a Snap Service, especially one running on the other process.
+ *
+ * <p>Putting megabytes in the intent extras copies them on every hop and may hit the binder transaction limit.
+ * Instead, {@link #put(Context, Intent, String, byte[])} writes the payload to a memory-mapped file, shared by
+ * all the app processes, and only its handle travels with the intent. The Snap Service then reads it with
+ * {@link #get(Intent, String)}, without copying it.</p>
+ *
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * Intent intent = new Intent(getApplicationContext(), UploadService.class);
+ * SnapSharedPayload.put(getApplicationContext(), intent, "EXTRA_PHOTO", photoBytes);
+ * SnapServicesContext.startServiceOnOtherProcess(intent);
+ *
+ * // inside UploadService.onHandleIntent(intent)
+ * ByteBuffer photo = SnapSharedPayload.get(intent, "EXTRA_PHOTO");
+ * }
+ * </pre>
+ *
+ * <p>The payloads are released once {@link com.android.snap.snapservices.SnapService#onHandleIntent(Intent)}
+ * returns, so the buffers must not be used after that. Payloads left behind by a process that died are swept
+ * once they're a day old. They're kept out of the cache directory, which the system may clear while a payload
+ * is still on its way.</p>
+ */
+public final class SnapSharedPayload {
+
+    private static final String EXTRA_PAYLOAD_PREFIX = "com.android.snap.extra.SHARED_PAYLOAD#";
+    private static final String PAYLOADS_DIR = "snap_payloads";
+    /**
+     * Payloads not released after this long belong to work that was lost with its process.
+     * Long enough for journaled work to be replayed with them.
+     */
+    private static final long STALE_PAYLOAD_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static volatile Context sContext;
+    private static File sPayloadsDir;
+
+    private SnapSharedPayload() {
+
+    }
+
+    /**
+     * Writes the payload to a shared memory-mapped file and adds its handle to the intent.
+     *
+     * @param context The application context.
+     * @param intent The Snap Intent that will carry the payload.
+     * @param key The name of this payload, to read it with {@link #get(Intent, String)}.
+     * @param payload The payload.
+     * @throws IOException If the payload couldn't be written.
+     */
+    public static void put(Context context, Intent intent, String key, byte[] payload) throws IOException {
+        if (sContext == null) {
+            sContext = context.getApplicationContext();
+        }
+        File dir = resolvePayloadsDir(context);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create the payloads directory: " + dir);
+        }
+
+        File file = new File(dir, UUID.randomUUID().toString());
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, payload.length);
+            buffer.put(payload);
+        } catch (IOException ex) {
+            delete(file.getAbsolutePath());
+            throw ex;
+        } finally {
+            randomAccessFile.close();
+        }
+
+        release(intent, key);
+        intent.putExtra(EXTRA_PAYLOAD_PREFIX + key, file.getAbsolutePath());
+    }
+
+    /**
+     * Provides read-only access to a payload added with {@link #put(Context, Intent, String, byte[])}.
+     * The payload is mapped in memory, not copied.
+     *
+     * @param intent The Snap Intent carrying the payload.
+     * @param key The name of the payload.
+     * @return The payload, or null if there's no payload with that name.
+     * @throws IOException If the payload couldn't be read.
+     */
+    public static ByteBuffer get(Intent intent, String key) throws IOException {
+        String path = intent.getStringExtra(EXTRA_PAYLOAD_PREFIX + key);
+        if (path == null) return null;
+        if (!isPayload(new File(path))) {
+            throw new IOException("Not a Snap payload: " + path);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // the mapping stays valid after closing the file.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Sets up the payloads of this process and, if <var>sweep</var> is set, deletes in the background the
+     * payloads left behind by processes that died before releasing them.
+     *
+     * @param context The application context.
+     * @param sweep True to sweep the stale payloads. Only one process should do it.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void init(Context context, boolean sweep) {
+        sContext = context.getApplicationContext();
+        if (!sweep) return;
+
+        SnapBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sweepStalePayloads();
+            }
+        });
+    }
+
+    private static void sweepStalePayloads() {
+        File dir = getPayloadsDir();
+        File[] payloads = dir == null ? null : dir.listFiles();
+        if (payloads == null) return;
+
+        long staleBefore = System.currentTimeMillis() - STALE_PAYLOAD_AGE;
+        int swept = 0;
+        for (File payload : payloads) {
+            if (payload.isFile() && payload.lastModified() < staleBefore && payload.delete()) {
+                swept++;
+            }
+        }
+        if (swept > 0) {
+            SnapLogger.d("Swept " + swept + " stale payloads.");
+        }
+    }
+
+    /**
+     * Releases all the payloads carried by the intent.
+     *
+     * @param intent The Snap Intent carrying the payloads.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void release(Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (extras == null) return;
+
+        for (String extra : extras.keySet()) {
+            if (extra.startsWith(EXTRA_PAYLOAD_PREFIX)) {
+                delete(extras.getString(extra));
+            }
+        }
+    }
+
+    /**
+     * Releases the payloads carried by an intent that was coalesced, except the ones the resulting intent
+     * still carries.
+     *
+     * @param coalesced The intent that was coalesced.
+     * @param result The intent resulting from the coalescing.
+     */
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void releaseCoalesced(Intent coalesced, Intent result) {
+        Bundle extras = coalesced.getExtras();
+        if (extras == null) return;
+
+        for (String extra : extras.keySet()) {
+            if (!extra.startsWith(EXTRA_PAYLOAD_PREFIX)) continue;
+
+            String path = extras.getString(extra);
+            if (path != null && !path.equals(result.getStringExtra(extra))) {
+                delete(path);
+            }
+        }
+    }
+
+    private static void release(Intent intent, String key) {
+        String path = intent.getStringExtra(EXTRA_PAYLOAD_PREFIX + key);
+        if (path != null) {
+            delete(path);
+        }
+    }
+
+    private static void delete(String path) {
+        if (path == null) return;
+
+        File file = new File(path);
+        if (!isPayload(file)) {
+            SnapLogger.w("Refusing to release a file outside the payloads directory [path=" + path + "]");
+            return;
+        }
+
+        if (!file.delete()) {
+            SnapLogger.v("Payload already released [path=" + path + "]");
+        }
+    }
+
+    /**
+     * @return True if the file is right inside the payloads directory, once links and ".." are resolved.
+     */
+    private static boolean isPayload(File file) {
+        File dir = getPayloadsDir();
+        if (dir == null) return false;
+
+        try {
+            return dir.equals(file.getCanonicalFile().getParentFile());
+        } catch (IOException ex) {
+            SnapLogger.v("Couldn't resolve the payload path [path=" + file + "]", ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return The payloads directory, in the no backup files directory where available.
+     */
+    private static File resolvePayloadsDir(Context context) {
+        File filesDir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? context.getNoBackupFilesDir() : context.getFilesDir();
+        return new File(filesDir, PAYLOADS_DIR);
+    }
+
+    /**
+     * @return The canonical payloads directory, or null if this process wasn't set up yet.
+     */
+    private static synchronized File getPayloadsDir() {
+        if (sPayloadsDir == null) {
+            Context context = sContext;
+            if (context == null) return null;
+
+            try {
+                sPayloadsDir = resolvePayloadsDir(context).getCanonicalFile();
+            } catch (IOException ex) {
+                SnapLogger.w("Couldn't resolve the payloads directory.", ex);
+                return null;
+            }
+        }
+        return sPayloadsDir;
+    }
+}
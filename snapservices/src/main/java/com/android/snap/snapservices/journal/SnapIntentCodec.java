@@ -0,0 +1,379 @@
+package com.android.snap.snapservices.journal;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Encodes the intents kept by the {@link SnapJournal} in a format that doesn't change with the platform or the app
+ * version, unlike a marshalled {@link android.os.Parcel}.
+ *
+ * <p>The intent is kept as its {@link Intent#toUri(int)}, without its extras, followed by the extras, each one
+ * with its type:</p>
+ * <pre>
+ * [uri:string][extras:bundle]
+ * bundle: [count:int]([key:string][type:byte][value])*
+ * string: [length:int][utf-8 bytes], or a length of -1 for null
+ * </pre>
+ *
+ * <p>Only extras of the types below can be kept: primitives, strings, their arrays, string and integer lists,
+ * and bundles of those. Intents with other extras (ex: parcelables or serializables) can't be encoded, as their
+ * classes may change before they're decoded.</p>
+ */
+final class SnapIntentCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_BYTE = 3;
+    private static final byte TYPE_CHAR = 4;
+    private static final byte TYPE_SHORT = 5;
+    private static final byte TYPE_INT = 6;
+    private static final byte TYPE_LONG = 7;
+    private static final byte TYPE_FLOAT = 8;
+    private static final byte TYPE_DOUBLE = 9;
+    private static final byte TYPE_STRING_ARRAY = 10;
+    private static final byte TYPE_BOOLEAN_ARRAY = 11;
+    private static final byte TYPE_BYTE_ARRAY = 12;
+    private static final byte TYPE_INT_ARRAY = 13;
+    private static final byte TYPE_LONG_ARRAY = 14;
+    private static final byte TYPE_FLOAT_ARRAY = 15;
+    private static final byte TYPE_DOUBLE_ARRAY = 16;
+    private static final byte TYPE_STRING_LIST = 17;
+    private static final byte TYPE_INT_LIST = 18;
+    private static final byte TYPE_BUNDLE = 19;
+
+    private SnapIntentCodec() {
+
+    }
+
+    /**
+     * @param intent The intent to encode.
+     * @return The encoded intent.
+     * @throws IOException If it has extras that can't be encoded.
+     */
+    static byte[] encode(Intent intent) throws IOException {
+        Intent withoutExtras = new Intent(intent);
+        withoutExtras.replaceExtras((Bundle) null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, withoutExtras.toUri(Intent.URI_INTENT_SCHEME));
+        writeBundle(out, intent.getExtras());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param payload An intent encoded by {@link #encode(Intent)}.
+     * @return The intent.
+     * @throws IOException If the payload isn't a valid intent.
+     */
+    static Intent decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Intent intent;
+        try {
+            intent = Intent.parseUri(readString(in), Intent.URI_INTENT_SCHEME);
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid intent uri", ex);
+        }
+
+        Bundle extras = readBundle(in);
+        if (extras != null) {
+            intent.replaceExtras(extras);
+        }
+        return intent;
+    }
+
+    private static void writeBundle(DataOutputStream out, Bundle bundle) throws IOException {
+        if (bundle == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, key, bundle.get(key));
+        }
+    }
+
+    private static Bundle readBundle(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) return null;
+
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            readValue(in, bundle, key);
+        }
+        return bundle;
+    }
+
+    private static void writeValue(DataOutputStream out, String key, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(TYPE_CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String item : array) {
+                writeString(out, item);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean item : array) {
+                out.writeBoolean(item);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] array = (byte[]) value;
+            out.writeByte(TYPE_BYTE_ARRAY);
+            out.writeInt(array.length);
+            out.write(array);
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int item : array) {
+                out.writeInt(item);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long item : array) {
+                out.writeLong(item);
+            }
+        } else if (value instanceof float[]) {
+            float[] array = (float[]) value;
+            out.writeByte(TYPE_FLOAT_ARRAY);
+            out.writeInt(array.length);
+            for (float item : array) {
+                out.writeFloat(item);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double item : array) {
+                out.writeDouble(item);
+            }
+        } else if (value instanceof ArrayList && isListOf((ArrayList<?>) value, String.class)) {
+            ArrayList<?> list = (ArrayList<?>) value;
+            out.writeByte(TYPE_STRING_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeString(out, (String) item);
+            }
+        } else if (value instanceof ArrayList && isListOf((ArrayList<?>) value, Integer.class)) {
+            ArrayList<?> list = (ArrayList<?>) value;
+            out.writeByte(TYPE_INT_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                // null items can't be told apart from a missing one otherwise.
+                out.writeBoolean(item != null);
+                if (item != null) {
+                    out.writeInt((Integer) item);
+                }
+            }
+        } else if (value instanceof Bundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (Bundle) value);
+        } else {
+            throw new IOException("Extra can't be journaled [key=" + key + ";type=" + value.getClass().getName() + "]");
+        }
+    }
+
+    private static void readValue(DataInputStream in, Bundle bundle, String key) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                bundle.putString(key, null);
+                break;
+            case TYPE_STRING:
+                bundle.putString(key, readString(in));
+                break;
+            case TYPE_BOOLEAN:
+                bundle.putBoolean(key, in.readBoolean());
+                break;
+            case TYPE_BYTE:
+                bundle.putByte(key, in.readByte());
+                break;
+            case TYPE_CHAR:
+                bundle.putChar(key, in.readChar());
+                break;
+            case TYPE_SHORT:
+                bundle.putShort(key, in.readShort());
+                break;
+            case TYPE_INT:
+                bundle.putInt(key, in.readInt());
+                break;
+            case TYPE_LONG:
+                bundle.putLong(key, in.readLong());
+                break;
+            case TYPE_FLOAT:
+                bundle.putFloat(key, in.readFloat());
+                break;
+            case TYPE_DOUBLE:
+                bundle.putDouble(key, in.readDouble());
+                break;
+            case TYPE_STRING_ARRAY: {
+                String[] array = new String[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readString(in);
+                }
+                bundle.putStringArray(key, array);
+                break;
+            }
+            case TYPE_BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readBoolean();
+                }
+                bundle.putBooleanArray(key, array);
+                break;
+            }
+            case TYPE_BYTE_ARRAY: {
+                byte[] array = new byte[readLength(in)];
+                in.readFully(array);
+                bundle.putByteArray(key, array);
+                break;
+            }
+            case TYPE_INT_ARRAY: {
+                int[] array = new int[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readInt();
+                }
+                bundle.putIntArray(key, array);
+                break;
+            }
+            case TYPE_LONG_ARRAY: {
+                long[] array = new long[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readLong();
+                }
+                bundle.putLongArray(key, array);
+                break;
+            }
+            case TYPE_FLOAT_ARRAY: {
+                float[] array = new float[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readFloat();
+                }
+                bundle.putFloatArray(key, array);
+                break;
+            }
+            case TYPE_DOUBLE_ARRAY: {
+                double[] array = new double[readLength(in)];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readDouble();
+                }
+                bundle.putDoubleArray(key, array);
+                break;
+            }
+            case TYPE_STRING_LIST: {
+                int size = readLength(in);
+                ArrayList<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readString(in));
+                }
+                bundle.putStringArrayList(key, list);
+                break;
+            }
+            case TYPE_INT_LIST: {
+                int size = readLength(in);
+                ArrayList<Integer> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(in.readBoolean() ? in.readInt() : null);
+                }
+                bundle.putIntegerArrayList(key, list);
+                break;
+            }
+            case TYPE_BUNDLE:
+                bundle.putBundle(key, readBundle(in));
+                break;
+            default:
+                throw new IOException("Unknown extra type [key=" + key + ";type=" + type + "]");
+        }
+    }
+
+    /**
+     * @return True if every item of the list is null or of the supplied class.
+     */
+    private static boolean isListOf(ArrayList<?> list, Class<?> itemClass) {
+        for (Object item : list) {
+            if (item != null && !itemClass.isInstance(item)) return false;
+        }
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return The length of an array or list. Checked, so a corrupted one doesn't allocate a huge array.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return length;
+    }
+}
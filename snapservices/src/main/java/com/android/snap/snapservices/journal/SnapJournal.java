@@ -0,0 +1,430 @@
+package com.android.snap.snapservices.journal;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the Snap Intents started on this process, so the ones that didn't finish can be started
+ * again after the process dies.
+ *
+ * <p>The journal is a memory-mapped file. Each record holds an intent, encoded by {@link SnapIntentCodec} so it
+ * can still be read after the app is updated, its priority and a state byte, which is flipped in place once the
+ * intent was handled:</p>
+ * <pre>
+ * [length:int][crc:int][state:byte][priority:int][intent:length bytes]
+ * </pre>
+ *
+ * <p>Writes to the mapped file survive the process being killed right away. Surviving a device crash needs them
+ * to be flushed to the disk, which is done in groups: all the changes made within the commit interval are flushed
+ * together, instead of one flush per intent.</p>
+ *
+ * <p>Once all records are done, new ones are written from the start again. When the file is full, the pending
+ * records are copied to a new file, which then replaces it.</p>
+ *
+ * <p>The file is mapped, and the records left pending recovered, on the journal thread. Records appended
+ * meanwhile are kept in memory, and written once it's mapped.</p>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SnapJournal {
+
+    /**
+     * An intent that didn't finish before the process died.
+     */
+    public static final class Record {
+        public final long id;
+        public final Intent intent;
+        public final int priority;
+
+        Record(long id, Intent intent, int priority) {
+            this.id = id;
+            this.intent = intent;
+            this.priority = priority;
+        }
+    }
+
+    private static final class QueuedRecord {
+        final byte[] payload;
+        final int priority;
+
+        QueuedRecord(byte[] payload, int priority) {
+            this.payload = payload;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Receives the records recovered once the journal is open.
+     */
+    public interface RecoveryListener {
+        /**
+         * Called on the journal thread.
+         *
+         * @param records The records that were still pending when the process died, in the order they were
+         *                appended. They're kept pending, under the supplied ids, until they're marked as done.
+         */
+        void onRecovered(List<Record> records);
+    }
+
+    public static final long NO_RECORD = -1;
+
+    private static final int MAGIC = 0x534E4A31;
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final int STATE_OFFSET = 8;
+    private static final int PRIORITY_OFFSET = 9;
+    private static final byte STATE_PENDING = 1;
+    private static final byte STATE_DONE = 2;
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+
+    private final File file;
+    private final long commitInterval;
+    /**
+     * Runs on the journal thread, which opens the journal and flushes it.
+     */
+    private final Handler mFlushHandler;
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private int mWritePosition = HEADER_SIZE;
+    /**
+     * Offset of each pending record, by id.
+     */
+    private final Map<Long, Integer> mPendingRecords = new HashMap<>();
+    /**
+     * Records appended before the journal was mapped, by id.
+     */
+    private final Map<Long, QueuedRecord> mQueuedRecords = new LinkedHashMap<>();
+    private boolean mClosed;
+    private long mNextId;
+    private boolean mFlushScheduled;
+
+    private SnapJournal(File file, long commitInterval) {
+        this.file = file;
+        this.commitInterval = commitInterval;
+        HandlerThread flushThread = new HandlerThread("SnapJournal", Process.THREAD_PRIORITY_BACKGROUND);
+        flushThread.start();
+        this.mFlushHandler = new Handler(flushThread.getLooper());
+    }
+
+    /**
+     * Opens the journal, creating it if needed, and recovers its pending records, on the journal thread.
+     * It can be used right away.
+     *
+     * @param file The journal file. Each process needs its own.
+     * @param commitInterval How long, in milliseconds, changes may wait to be flushed to the disk.
+     * @param listener Receives the recovered records. Not called if the journal can't be opened.
+     * @return The journal.
+     */
+    public static SnapJournal open(File file, long commitInterval, final RecoveryListener listener) {
+        final SnapJournal journal = new SnapJournal(file, commitInterval);
+        journal.mFlushHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Record> records = journal.mapAndRecover();
+                if (records != null) {
+                    listener.onRecovered(records);
+                }
+            }
+        });
+        return journal;
+    }
+
+    /**
+     * @return The recovered records, or null if the journal couldn't be opened.
+     */
+    private synchronized List<Record> mapAndRecover() {
+        try {
+            map();
+        } catch (IOException ex) {
+            SnapLogger.w("Couldn't open the journal. Work won't be durable [file=" + file + "]", ex);
+            mClosed = true;
+            mQueuedRecords.clear();
+            return null;
+        }
+
+        List<Record> records = recover();
+        for (Map.Entry<Long, QueuedRecord> queued : mQueuedRecords.entrySet()) {
+            write(queued.getKey(), queued.getValue().payload, queued.getValue().priority);
+        }
+        mQueuedRecords.clear();
+        return records;
+    }
+
+    private void map() throws IOException {
+        boolean existing = file.length() >= HEADER_SIZE;
+        mFile = new RandomAccessFile(file, "rw");
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(INITIAL_CAPACITY, mFile.length()));
+        if (!existing || mBuffer.getInt(0) != MAGIC) {
+            if (existing) {
+                SnapLogger.w("Unknown journal format. Starting a new one [file=" + file + "]");
+            }
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(HEADER_SIZE, 0);
+        }
+    }
+
+    /**
+     * Reads the records that were still pending when the process died. They're kept pending, under the supplied ids,
+     * until they're marked as done.
+     *
+     * @return The pending records, in the order they were appended.
+     */
+    private List<Record> recover() {
+        List<Record> records = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while (true) {
+            int size = readRecordSize(position);
+            if (size == -1) break;
+
+            if (mBuffer.get(position + STATE_OFFSET) == STATE_PENDING) {
+                Intent intent = decode(position);
+                if (intent != null) {
+                    long id = mNextId++;
+                    mPendingRecords.put(id, position);
+                    records.add(new Record(id, intent, mBuffer.getInt(position + PRIORITY_OFFSET)));
+                } else {
+                    mBuffer.put(position + STATE_OFFSET, STATE_DONE);
+                }
+            }
+            position += size;
+        }
+        mWritePosition = position;
+        SnapLogger.v("Recovered " + records.size() + " pending records from the journal [file=" + file + "]");
+        return records;
+    }
+
+    /**
+     * Appends an intent to the journal.
+     *
+     * @param intent The intent started.
+     * @param priority The priority it was started with.
+     * @return The id of its record, or {@link #NO_RECORD} if it couldn't be journaled.
+     */
+    public synchronized long append(Intent intent, int priority) {
+        if (mClosed) return NO_RECORD;
+
+        byte[] payload = encode(intent);
+        if (payload == null) return NO_RECORD;
+
+        long id = mNextId++;
+        if (mBuffer == null) {
+            mQueuedRecords.put(id, new QueuedRecord(payload, priority));
+            return id;
+        }
+        return write(id, payload, priority) ? id : NO_RECORD;
+    }
+
+    /**
+     * @return True if the record was written.
+     */
+    private boolean write(long id, byte[] payload, int priority) {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        try {
+            if (mPendingRecords.isEmpty() && mWritePosition > HEADER_SIZE) {
+                // all records are done. Start over instead of growing the file.
+                mBuffer.putInt(HEADER_SIZE, 0);
+                mWritePosition = HEADER_SIZE;
+            }
+            if (mWritePosition + size + 4 > mBuffer.capacity()) {
+                compact(size);
+            }
+        } catch (IOException ex) {
+            SnapLogger.w("Couldn't make room in the journal. Intent won't be journaled [id=" + id + "]", ex);
+            return false;
+        }
+
+        int position = mWritePosition;
+        writeRecord(mBuffer, position, payload, priority);
+        mWritePosition = position + size;
+
+        mPendingRecords.put(id, position);
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Marks a record as done, so it's not recovered after the process dies.
+     *
+     * @param id The id of the record. Ignored if it's {@link #NO_RECORD}.
+     */
+    public synchronized void markDone(long id) {
+        if (id == NO_RECORD) return;
+        if (mQueuedRecords.remove(id) != null) return;
+
+        Integer position = mPendingRecords.remove(id);
+        if (position == null) return;
+
+        mBuffer.put(position + STATE_OFFSET, STATE_DONE);
+        scheduleFlush();
+    }
+
+    /**
+     * Writes the record and the end mark after it. The length goes last, so a half written record is never read.
+     */
+    private static void writeRecord(ByteBuffer buffer, int position, byte[] payload, int priority) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        buffer.putInt(position + RECORD_HEADER_SIZE + payload.length, 0);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.put(position + STATE_OFFSET, STATE_PENDING);
+        buffer.putInt(position + PRIORITY_OFFSET, priority);
+        ByteBuffer payloadBuffer = buffer.duplicate();
+        payloadBuffer.position(position + RECORD_HEADER_SIZE);
+        payloadBuffer.put(payload);
+        buffer.putInt(position, payload.length);
+    }
+
+    /**
+     * @return The size of the record at the supplied position, or -1 if there's no valid record there.
+     */
+    private int readRecordSize(int position) {
+        if (position + RECORD_HEADER_SIZE > mBuffer.capacity()) return -1;
+
+        int length = mBuffer.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER_SIZE + length > mBuffer.capacity()) return -1;
+
+        CRC32 crc = new CRC32();
+        crc.update(readPayload(position, length), 0, length);
+        if ((int) crc.getValue() != mBuffer.getInt(position + 4)) {
+            SnapLogger.w("Corrupted journal record. Ignoring it and everything after it [position=" + position + "]");
+            return -1;
+        }
+        return RECORD_HEADER_SIZE + length;
+    }
+
+    private byte[] readPayload(int position, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer payloadBuffer = mBuffer.duplicate();
+        payloadBuffer.position(position + RECORD_HEADER_SIZE);
+        payloadBuffer.get(payload);
+        return payload;
+    }
+
+    /**
+     * Copies the pending records to a new file, big enough to append a record of the supplied size,
+     * and replaces the journal with it.
+     */
+    private void compact(int neededSize) throws IOException {
+        int pendingSize = 0;
+        Map<Integer, Long> pendingIds = new HashMap<>();
+        for (Map.Entry<Long, Integer> record : mPendingRecords.entrySet()) {
+            pendingIds.put(record.getValue(), record.getKey());
+            pendingSize += RECORD_HEADER_SIZE + mBuffer.getInt(record.getValue());
+        }
+
+        int capacity = mBuffer.capacity();
+        while (HEADER_SIZE + pendingSize + neededSize + 4 > capacity / 2) {
+            capacity *= 2;
+        }
+        SnapLogger.v("Compacting the journal [pending=" + pendingIds.size() + ";capacity=" + capacity + "]");
+
+        File compactedFile = new File(file.getPath() + ".compact");
+        RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw");
+        MappedByteBuffer buffer;
+        int writePosition = HEADER_SIZE;
+        try {
+            compacted.setLength(0);
+            buffer = compacted.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(HEADER_SIZE, 0);
+            // keep the order they were appended in.
+            for (int position = HEADER_SIZE; position < mWritePosition; ) {
+                int length = mBuffer.getInt(position);
+                Long id = pendingIds.get(position);
+                if (id != null) {
+                    writeRecord(buffer, writePosition, readPayload(position, length),
+                            mBuffer.getInt(position + PRIORITY_OFFSET));
+                    mPendingRecords.put(id, writePosition);
+                    writePosition += RECORD_HEADER_SIZE + length;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            buffer.force();
+        } catch (IOException ex) {
+            close(compacted);
+            throw ex;
+        }
+
+        if (!compactedFile.renameTo(file)) {
+            close(compacted);
+            throw new IOException("Couldn't replace the journal [file=" + file + "]");
+        }
+        close(mFile);
+        mFile = compacted;
+        mBuffer = buffer;
+        mWritePosition = writePosition;
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) return;
+
+        mFlushScheduled = true;
+        mFlushHandler.postDelayed(mFlush, commitInterval);
+    }
+
+    /**
+     * Flushes all the changes made since the last flush to the disk, at once.
+     */
+    private void flush() {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            mFlushScheduled = false;
+            buffer = mBuffer;
+        }
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    private static byte[] encode(Intent intent) {
+        try {
+            return SnapIntentCodec.encode(intent);
+        } catch (IOException ex) {
+            SnapLogger.w("Intent can't be encoded. It won't be journaled [intent=" + intent + "]", ex);
+            return null;
+        }
+    }
+
+    private Intent decode(int position) {
+        byte[] payload = readPayload(position, mBuffer.getInt(position));
+        try {
+            return SnapIntentCodec.decode(payload);
+        } catch (IOException | RuntimeException ex) {
+            SnapLogger.w("Dropping a journal record that can't be read [position=" + position + "]", ex);
+            return null;
+        }
+    }
+
+    private static void close(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
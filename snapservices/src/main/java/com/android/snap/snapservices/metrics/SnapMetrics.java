@@ -0,0 +1,229 @@
+package com.android.snap.snapservices.metrics;
+
+import android.support.annotation.RestrictTo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters about how the Snap Services are being used, in the current process.
+ *
+ * <p>These are meant to help tuning the library options (ex: the idle timeout of the Snap Services)
+ * by measuring their effect. All counters start at zero when the process starts, or when {@link #reset()} is called.</p>
+ *
+ * <p>The forwarded intents received by the forked processes are also reported to the main process, so its
+ * forward counters cover every process.</p>
+ */
+public final class SnapMetrics {
+
+    private static final AtomicLong sServicesCreated = new AtomicLong();
+    private static final AtomicLong sIdleServicesReused = new AtomicLong();
+    private static final AtomicLong sServicesDestroyed = new AtomicLong();
+    private static final AtomicLong sIdleServicesTrimmed = new AtomicLong();
+    private static final AtomicLong sColdForwards = new AtomicLong();
+    private static final AtomicLong sColdForwardsLatency = new AtomicLong();
+    private static final AtomicLong sWarmForwards = new AtomicLong();
+    private static final AtomicLong sWarmForwardsLatency = new AtomicLong();
+    private static final AtomicLong sAlarmsRestored = new AtomicLong();
+    private static final AtomicLong sRetries = new AtomicLong();
+    private static final AtomicLong sRetriesGivenUp = new AtomicLong();
+    private static final AtomicLong sAlarmRestoreDuration = new AtomicLong();
+    private static final AtomicLong sWorkCancelled = new AtomicLong();
+    private static final AtomicLong sWorkExpired = new AtomicLong();
+
+    private SnapMetrics() {
+
+    }
+
+    /**
+     * @return How many Snap Services instances were created (cold starts).
+     */
+    public static long getServicesCreated() {
+        return sServicesCreated.get();
+    }
+
+    /**
+     * @return How many times an idle Snap Service, kept alive by its idle timeout, was reused instead of
+     * being created again. This is the create/destroy churn avoided by the idle timeout.
+     */
+    public static long getIdleServicesReused() {
+        return sIdleServicesReused.get();
+    }
+
+    /**
+     * @return How many Snap Services instances were destroyed.
+     */
+    public static long getServicesDestroyed() {
+        return sServicesDestroyed.get();
+    }
+
+    /**
+     * @return How many idle Snap Services were destroyed before their idle timeout due to memory pressure.
+     */
+    public static long getIdleServicesTrimmed() {
+        return sIdleServicesTrimmed.get();
+    }
+
+    /**
+     * @return How many intents received from another process had to wait for this process to start. On the main
+     * process, it includes the ones received by the forked processes.
+     */
+    public static long getColdForwards() {
+        return sColdForwards.get();
+    }
+
+    /**
+     * @return Average time, in milliseconds, between forwarding an intent and receiving it on this process,
+     * when this process had to be started for it. 0 if there were none.
+     */
+    public static long getAverageColdForwardLatency() {
+        long count = sColdForwards.get();
+        return count == 0 ? 0 : sColdForwardsLatency.get() / count;
+    }
+
+    /**
+     * @return How many intents received from another process found this process already running. On the main
+     * process, it includes the ones received by the forked processes.
+     */
+    public static long getWarmForwards() {
+        return sWarmForwards.get();
+    }
+
+    /**
+     * @return Average time, in milliseconds, between forwarding an intent and receiving it on this process,
+     * when this process was already running. 0 if there were none.
+     */
+    public static long getAverageWarmForwardLatency() {
+        long count = sWarmForwards.get();
+        return count == 0 ? 0 : sWarmForwardsLatency.get() / count;
+    }
+
+    /**
+     * @return How many times a failed request was scheduled to be handled again, following its
+     * {@link com.android.snap.snapservices.configuration.SnapRetryPolicy}.
+     */
+    public static long getRetries() {
+        return sRetries.get();
+    }
+
+    /**
+     * @return How many failed requests were dropped after running out of attempts.
+     */
+    public static long getRetriesGivenUp() {
+        return sRetriesGivenUp.get();
+    }
+
+    /**
+     * @return How many requests were cancelled through their
+     * {@link com.android.snap.snapservices.SnapWorkHandle}, before finishing.
+     */
+    public static long getWorkCancelled() {
+        return sWorkCancelled.get();
+    }
+
+    /**
+     * @return How many requests were dropped, without being handled, because their deadline passed.
+     */
+    public static long getWorkExpired() {
+        return sWorkExpired.get();
+    }
+
+    /**
+     * @return How many alarms were set again after the last reboot or app update.
+     */
+    public static long getAlarmsRestored() {
+        return sAlarmsRestored.get();
+    }
+
+    /**
+     * @return How long, in milliseconds, it took to set the alarms again after the last reboot or app update.
+     */
+    public static long getAlarmRestoreDuration() {
+        return sAlarmRestoreDuration.get();
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public static void reset() {
+        sServicesCreated.set(0);
+        sIdleServicesReused.set(0);
+        sServicesDestroyed.set(0);
+        sIdleServicesTrimmed.set(0);
+        sColdForwards.set(0);
+        sColdForwardsLatency.set(0);
+        sWarmForwards.set(0);
+        sWarmForwardsLatency.set(0);
+        sAlarmsRestored.set(0);
+        sRetries.set(0);
+        sRetriesGivenUp.set(0);
+        sAlarmRestoreDuration.set(0);
+        sWorkCancelled.set(0);
+        sWorkExpired.set(0);
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onServiceCreated() {
+        sServicesCreated.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onIdleServiceReused() {
+        sIdleServicesReused.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onServiceDestroyed() {
+        sServicesDestroyed.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onIdleServiceTrimmed() {
+        sIdleServicesTrimmed.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onRetryScheduled() {
+        sRetries.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onRetryGivenUp() {
+        sRetriesGivenUp.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onWorkCancelled() {
+        sWorkCancelled.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onWorkExpired() {
+        sWorkExpired.incrementAndGet();
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onAlarmsRestored(int count, long durationMillis) {
+        sAlarmsRestored.set(count);
+        sAlarmRestoreDuration.set(durationMillis);
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onForwardReceived(long latencyMillis, boolean cold) {
+        if (cold) {
+            sColdForwards.incrementAndGet();
+            sColdForwardsLatency.addAndGet(latencyMillis);
+        } else {
+            sWarmForwards.incrementAndGet();
+            sWarmForwardsLatency.addAndGet(latencyMillis);
+        }
+    }
+
+    @RestrictTo(RestrictTo.Scope.LIBRARY)
+    public static void onForwardsReported(long coldForwards, long coldLatencyMillis,
+                                          long warmForwards, long warmLatencyMillis) {
+        sColdForwards.addAndGet(coldForwards);
+        sColdForwardsLatency.addAndGet(coldLatencyMillis);
+        sWarmForwards.addAndGet(warmForwards);
+        sWarmForwardsLatency.addAndGet(warmLatencyMillis);
+    }
+}
@@ -0,0 +1,30 @@
+package com.android.snap.snapservices.registry;
+
+import com.android.snap.snapservices.SnapService;
+
+/**
+ * Creates Snap Services without reflection.
+ *
+ * <p>An implementation of this interface is generated at build time by the <em>snapservices-compiler</em>
+ * annotation processor, in each module with Snap Services annotated with {@link RegisterSnapService}. The generated
+ * registries are listed in <em>META-INF/services</em>, and found through {@link java.util.ServiceLoader}.
+ * Snap Services that aren't registered are still created through reflection.</p>
+ */
+public interface SnapServiceRegistry {
+
+    /**
+     * Creates a new instance of the given Snap Service.
+     *
+     * @param className The class name of the Snap Service, as returned by {@link Class#getName()}.
+     * @return A new instance of the Snap Service, or null if it isn't registered.
+     */
+    SnapService newInstance(String className);
+
+    /**
+     * Verifies if a Snap Service is registered.
+     *
+     * @param className The class name to verify, as returned by {@link Class#getName()}.
+     * @return True if this is a registered Snap Service, false otherwise.
+     */
+    boolean contains(String className);
+}
@@ -0,0 +1,63 @@
+package com.android.snap.snapservices.scheduler;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.logger.SnapLogger;
+
+/**
+ * Runs the housekeeping of the library (mostly disk I/O, like opening the journal or saving the alarms) off the
+ * main thread, one task at a time and in the order they're posted.
+ *
+ * <p>Its thread is only started the first time it's needed.</p>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SnapBackgroundExecutor {
+
+    private static Handler sHandler;
+
+    private SnapBackgroundExecutor() {
+
+    }
+
+    /**
+     * Runs the task on the background thread.
+     */
+    public static void execute(Runnable task) {
+        getHandler().post(wrap(task));
+    }
+
+    /**
+     * Runs the task on the background thread, after a delay.
+     */
+    public static void executeDelayed(Runnable task, long delayMillis) {
+        getHandler().postDelayed(wrap(task), delayMillis);
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("SnapServicesBackground", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /**
+     * A failing task must not take the thread, and every task queued after it, down with it.
+     */
+    private static Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    SnapLogger.e("Background task failed [task=" + task + "]", ex);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package com.android.snap.snapservices.scheduler;
+
+import android.content.Intent;
+
+import com.android.snap.snapservices.configuration.SnapBackoffPolicy;
+
+/**
+ * A delayed (or periodic) start of a Snap Service. It can be used to cancel it.
+ *
+ * @see com.android.snap.snapservices.SnapServicesContext#startServiceDelayed(Intent, long)
+ * @see com.android.snap.snapservices.SnapServicesContext#startServicePeriodic(Intent, long, SnapBackoffPolicy)
+ */
+public final class SnapTimer {
+
+    private final SnapTimerWheel wheel;
+    final Intent intent;
+    /**
+     * What to run instead of starting a Snap Service, or null.
+     */
+    final Runnable task;
+    final long period;
+    final SnapBackoffPolicy backoff;
+    /**
+     * True if it was handed to an alarm, as it's too far ahead to be kept in the timer wheel.
+     */
+    final boolean onAlarm;
+    /**
+     * Request code of the alarm it was handed to. Any value is valid, so it's only meaningful with {@link #onAlarm}.
+     */
+    final int alarmRequestCode;
+
+    /**
+     * How many times it already ran. Only used on the wheel thread.
+     */
+    int runs;
+
+    /*
+     * The following are guarded by the wheel lock.
+     */
+    long deadlineTick;
+    boolean scheduled;
+    boolean cancelled;
+    SnapTimer previous;
+    SnapTimer next;
+
+    SnapTimer(SnapTimerWheel wheel, Intent intent, Runnable task, long period, SnapBackoffPolicy backoff) {
+        this(wheel, intent, task, period, backoff, false, 0);
+    }
+
+    SnapTimer(SnapTimerWheel wheel, Intent intent, Runnable task, long period, SnapBackoffPolicy backoff,
+              boolean onAlarm, int alarmRequestCode) {
+        this.wheel = wheel;
+        this.intent = intent;
+        this.task = task;
+        this.period = period;
+        this.backoff = backoff;
+        this.onAlarm = onAlarm;
+        this.alarmRequestCode = alarmRequestCode;
+    }
+
+    /**
+     * Cancels the start of the Snap Service, or its next runs if it's periodic.
+     * Runs that already started are not affected.
+     *
+     * @return True if a start was still pending and won't happen.
+     */
+    public boolean cancel() {
+        return wheel.cancel(this);
+    }
+
+    /**
+     * @return True if {@link #cancel()} was called.
+     */
+    public boolean isCancelled() {
+        return wheel.isCancelled(this);
+    }
+}
@@ -0,0 +1,306 @@
+package com.android.snap.snapservices.scheduler;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.RestrictTo;
+
+import com.android.snap.snapservices.SnapServicesContext;
+import com.android.snap.snapservices.alarms.SnapAlarmManager;
+import com.android.snap.snapservices.configuration.SnapBackoffPolicy;
+import com.android.snap.snapservices.logger.SnapLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts Snap Services after a delay, without going through the Android AlarmManager.
+ *
+ * <p>This is a hashed timer wheel: time is split in ticks and each timer is put in the bucket of the tick it's due,
+ * so scheduling and cancelling a timer don't depend on how many there are. The wheel only ticks, on its own
+ * thread, while there are timers in it, and skips the ticks with no timer due: it jumps straight to the next
+ * tick with one, waiting at most {@link #MAX_TICK_JUMP} at a time.</p>
+ *
+ * <p>Ticks are measured with {@link SystemClock#elapsedRealtime()}. The wheel doesn't wake the device up, so while
+ * it sleeps no tick runs; the first tick after it wakes up, within {@link #MAX_TICK_JUMP}, catches up with all
+ * the timers that became due. Timers further away than the alarm threshold are handed to the
+ * {@link SnapAlarmManager} instead, which also wakes the process up if it was killed in the meantime.</p>
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class SnapTimerWheel {
+
+    private static final long TICK_MILLIS = 50;
+    /**
+     * Number of buckets. It needs to be a power of 2. With 50ms ticks, a full round takes about 51 seconds.
+     */
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    /**
+     * The longest wait, in milliseconds, between two ticks. The wait doesn't count the time the device sleeps,
+     * so this bounds how late timers that became due while it slept are started.
+     */
+    private static final long MAX_TICK_JUMP = 1000;
+
+    private final Context context;
+    private final long alarmThreshold;
+    private final SnapTimer[] mBuckets = new SnapTimer[WHEEL_SIZE];
+    /**
+     * Request codes of the alarms set for timers too far ahead. Starts at a different value on each process start,
+     * so they don't replace the alarms set before the process died.
+     */
+    private final AtomicInteger mAlarmRequestCodes = new AtomicInteger((int) System.currentTimeMillis());
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            onTick();
+        }
+    };
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private int mTimerCount;
+    /**
+     * Last tick processed.
+     */
+    private long mCurrentTick;
+    /**
+     * Tick the wheel is waiting for, or -1 if it isn't ticking.
+     */
+    private long mNextTick = -1;
+
+    /**
+     * @param context The application context.
+     * @param alarmThreshold Timers delayed this long, or longer, are set on the {@link SnapAlarmManager} instead.
+     */
+    public SnapTimerWheel(Context context, long alarmThreshold) {
+        this.context = context;
+        this.alarmThreshold = alarmThreshold;
+    }
+
+    /**
+     * Starts the Snap Service after a delay.
+     *
+     * @param intent The Snap Intent to start.
+     * @param delayMillis The delay, in milliseconds.
+     * @return The timer, to cancel it.
+     */
+    public SnapTimer schedule(Intent intent, long delayMillis) {
+        if (delayMillis >= alarmThreshold) {
+            int requestCode = mAlarmRequestCodes.getAndIncrement();
+            SnapLogger.v("Delay too long for the timer wheel. Setting an alarm [delay=" + delayMillis
+                    + ", requestCode=" + requestCode + "]");
+            SnapAlarmManager.setAlarm(context, AlarmManager.ELAPSED_REALTIME_WAKEUP, intent, requestCode,
+                    SystemClock.elapsedRealtime() + delayMillis);
+            return new SnapTimer(this, intent, null, 0, null, true, requestCode);
+        }
+
+        SnapTimer timer = new SnapTimer(this, intent, null, 0, null);
+        add(timer, delayMillis);
+        return timer;
+    }
+
+    /**
+     * Runs a task, on the wheel thread, after a delay. It's always kept in the wheel, however long the delay.
+     *
+     * @param task The task to run. It must be quick, as it holds back the other timers.
+     * @param delayMillis The delay, in milliseconds.
+     * @return The timer, to cancel it.
+     */
+    public SnapTimer schedule(Runnable task, long delayMillis) {
+        SnapTimer timer = new SnapTimer(this, null, task, 0, null);
+        add(timer, delayMillis);
+        return timer;
+    }
+
+    /**
+     * Starts the Snap Service periodically, while this process is alive.
+     *
+     * @param intent The Snap Intent to start.
+     * @param periodMillis The time, in milliseconds, until the first run.
+     * @param backoff How the time between runs grows.
+     * @return The timer, to cancel it.
+     */
+    public SnapTimer schedulePeriodic(Intent intent, long periodMillis, SnapBackoffPolicy backoff) {
+        SnapTimer timer = new SnapTimer(this, intent, null, periodMillis, backoff);
+        add(timer, backoff.getDelay(periodMillis, 0));
+        return timer;
+    }
+
+    boolean cancel(SnapTimer timer) {
+        synchronized (this) {
+            if (timer.cancelled) return false;
+            timer.cancelled = true;
+
+            if (!timer.onAlarm) {
+                if (!timer.scheduled) return false;
+
+                unlink(timer);
+                if (mTimerCount == 0) {
+                    mHandler.removeCallbacks(mTick);
+                    mNextTick = -1;
+                }
+                return true;
+            }
+        }
+
+        // the alarm registry and the AlarmManager are used without holding the wheel, so ticks aren't stalled.
+        boolean pending = SnapAlarmManager.isAlarmSet(context, timer.intent, timer.alarmRequestCode);
+        SnapAlarmManager.cancelAlarm(context, timer.intent, timer.alarmRequestCode);
+        return pending;
+    }
+
+    /**
+     * @return True if there are timers waiting in the wheel. Timers handed to the {@link SnapAlarmManager}
+     * don't count, as they don't need this process to be alive.
+     */
+    public synchronized boolean hasPendingTimers() {
+        return mTimerCount > 0;
+    }
+
+    synchronized boolean isCancelled(SnapTimer timer) {
+        return timer.cancelled;
+    }
+
+    private synchronized void add(SnapTimer timer, long delayMillis) {
+        if (timer.cancelled) return;
+
+        if (mHandler == null) {
+            mThread = new HandlerThread("SnapTimerWheel", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (mTimerCount == 0) {
+            // the wheel wasn't ticking. There's nothing to catch up with.
+            mCurrentTick = now / TICK_MILLIS;
+        }
+
+        long deadline = now + Math.max(delayMillis, 0);
+        // rounded up, so it's never started earlier. It must be after the current tick, or it would be skipped.
+        timer.deadlineTick = Math.max((deadline + TICK_MILLIS - 1) / TICK_MILLIS, mCurrentTick + 1);
+
+        int bucket = (int) (timer.deadlineTick & WHEEL_MASK);
+        timer.previous = null;
+        timer.next = mBuckets[bucket];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        mBuckets[bucket] = timer;
+        timer.scheduled = true;
+
+        mTimerCount++;
+        if (mNextTick == -1 || timer.deadlineTick < mNextTick) {
+            postTick(timer.deadlineTick);
+        }
+    }
+
+    private void unlink(SnapTimer timer) {
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            mBuckets[(int) (timer.deadlineTick & WHEEL_MASK)] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+        mTimerCount--;
+    }
+
+    private void onTick() {
+        List<SnapTimer> expired = new ArrayList<>();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime() / TICK_MILLIS;
+            if (now - mCurrentTick >= WHEEL_SIZE) {
+                // slept through at least a full round. Every bucket may have due timers.
+                for (int bucket = 0; bucket < WHEEL_SIZE; bucket++) {
+                    expire(bucket, now, expired);
+                }
+            } else {
+                for (long tick = mCurrentTick + 1; tick <= now; tick++) {
+                    expire((int) (tick & WHEEL_MASK), now, expired);
+                }
+            }
+            mCurrentTick = now;
+
+            if (mTimerCount > 0) {
+                postTick(findNextTick());
+            } else {
+                mNextTick = -1;
+            }
+        }
+
+        for (SnapTimer timer : expired) {
+            if (timer.task != null) {
+                timer.task.run();
+                continue;
+            }
+
+            SnapServicesContext.startService(new Intent(timer.intent));
+            if (timer.period > 0) {
+                add(timer, timer.backoff.getDelay(timer.period, ++timer.runs));
+            }
+        }
+    }
+
+    /**
+     * Removes the timers of the bucket that are due by the supplied tick.
+     */
+    private void expire(int bucket, long tick, List<SnapTimer> expired) {
+        SnapTimer timer = mBuckets[bucket];
+        while (timer != null) {
+            SnapTimer next = timer.next;
+            if (timer.deadlineTick <= tick) {
+                unlink(timer);
+                expired.add(timer);
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * Finds the earliest tick a timer is due. The caller must hold this wheel lock, and the wheel must have timers.
+     *
+     * @return The tick. Ticks up to the current one were already processed, so it's always after it.
+     */
+    private long findNextTick() {
+        long nextTick = Long.MAX_VALUE;
+        for (long tick = mCurrentTick + 1; tick <= mCurrentTick + WHEEL_SIZE; tick++) {
+            SnapTimer timer = mBuckets[(int) (tick & WHEEL_MASK)];
+            while (timer != null) {
+                if (timer.deadlineTick == tick) {
+                    // buckets are visited in order, so no timer is due earlier.
+                    return tick;
+                }
+                nextTick = Math.min(nextTick, timer.deadlineTick);
+                timer = timer.next;
+            }
+        }
+        // every timer is due after a full round.
+        return nextTick;
+    }
+
+    /**
+     * Runs the tick at its boundary, or an earlier one if it's further than {@link #MAX_TICK_JUMP}.
+     * The caller must hold this wheel lock.
+     */
+    private void postTick(long tick) {
+        long delay = tick * TICK_MILLIS - SystemClock.elapsedRealtime();
+        if (delay > MAX_TICK_JUMP) {
+            delay = MAX_TICK_JUMP;
+            // the tick it wakes up at.
+            tick = (SystemClock.elapsedRealtime() + delay) / TICK_MILLIS;
+        }
+        mNextTick = tick;
+        mHandler.removeCallbacks(mTick);
+        mHandler.postDelayed(mTick, Math.max(delay, 0));
+    }
+}